@@ -0,0 +1,22 @@
+#!/bin/bash
+# Builds and runs the JMH benchmarks. Needs jmh-core, jmh-generator-annprocess,
+# jopt-simple and commons-math3 in benchmark/lib, and the LibreOffice SDK jars
+# (juh, jurt, ridl, unoil or libreoffice.jar) in lib/libreoffice-sdk, as for Eclipse.
+# Arguments are passed to JMH, e.g. ./runbenchmarks.sh FieldOrder -f 1 -wi 3 -i 5
+# ./runbenchmarks.sh transport [requests] [window] [payloadBytes] instead measures the
+# socket transport against FakeZoteroServer.
+
+CWD="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+CP="$CWD/lib/*:$CWD/../lib/*:$CWD/../lib/libreoffice-sdk/*"
+
+# Compile the extension and the benchmarks together, generating JMH harness code
+rm -rf $CWD/classes
+mkdir -p $CWD/classes
+javac -cp "$CP" -d $CWD/classes $(find $CWD/../source $CWD/source -name '*.java') || exit 1
+
+if [ "$1" == "transport" ]; then
+	shift
+	java -cp "$CWD/classes:$CP" org.zotero.integration.ooo.comp.FakeZoteroServer "$@"
+else
+	java -cp "$CWD/classes:$CP" org.openjdk.jmh.Main "$@"
+fi
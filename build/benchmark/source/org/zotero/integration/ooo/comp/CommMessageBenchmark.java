@@ -0,0 +1,121 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Measures decoding requests and encoding responses shaped like Document_getFields and
+ * Document_getFieldsDelta on a document with many citations
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CommMessageBenchmark {
+	@Param({"1000", "5000"})
+	int citations;
+	
+	Object[] fieldsResponse;
+	byte[] deltaRequest;
+	byte[] pingRequest;
+	
+	@Setup
+	public void setup() throws Exception {
+		SyntheticDocument document = new SyntheticDocument(citations);
+		int[] ids = new int[citations];
+		String[] codes = document.codes.toArray(new String[citations]);
+		int[] noteIndices = new int[citations];
+		for(int i=0; i<citations; i++) ids[i] = i;
+		fieldsResponse = new Object[] {ids, codes, noteIndices};
+		
+		// [command, [fieldType, knownIndices, knownHashes]]
+		java.io.ByteArrayOutputStream request = new java.io.ByteArrayOutputStream();
+		String[] hashes = new String[citations];
+		for(int i=0; i<citations; i++) hashes[i] = Document.getDigest(codes[i]);
+		JsonGenerator generator = CommMessage.jsonFactory.createJsonGenerator(request, JsonEncoding.UTF8);
+		CommMessage.writeValue(generator, new Object[] {"Document_getFieldsDelta",
+				new Object[] {"ReferenceMark", ids, hashes}});
+		generator.close();
+		deltaRequest = request.toByteArray();
+		
+		request.reset();
+		generator = CommMessage.jsonFactory.createJsonGenerator(request, JsonEncoding.UTF8);
+		CommMessage.writeValue(generator, new Object[] {"Application_ping", new Object[] {codes[0]}});
+		generator.close();
+		pingRequest = request.toByteArray();
+	}
+	
+	@Benchmark
+	public int encodeFieldsResponse() throws Exception {
+		CommMessage.CountingOutputStream out = new CommMessage.CountingOutputStream();
+		JsonGenerator generator = CommMessage.jsonFactory.createJsonGenerator(out, JsonEncoding.UTF8);
+		CommMessage.writeValue(generator, fieldsResponse);
+		generator.close();
+		return out.count;
+	}
+	
+	@Benchmark
+	public ArrayList<String> decodeDeltaRequest() throws Exception {
+		JsonParser parser = CommMessage.jsonFactory.createJsonParser(deltaRequest);
+		try {
+			CommArgs message = new CommArgs(parser);
+			message.beginArray();
+			message.nextString();
+			message.beginArray();
+			message.nextString();
+			message.nextIntList();
+			return message.nextStringList();
+		} finally {
+			parser.close();
+		}
+	}
+	
+	/**
+	 * A full round trip through the handler table: executing the request, serializing the
+	 * response to count its bytes, then serializing it again to the output stream
+	 */
+	@Benchmark
+	public int ping() throws Exception {
+		CommMessage message = new CommMessage(null, 1, pingRequest, pingRequest.length);
+		CommMessage.CountingOutputStream out = new CommMessage.CountingOutputStream();
+		message.getLength();
+		message.writePayload(out);
+		return out.count;
+	}
+}
@@ -0,0 +1,151 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stand-in for Zotero that speaks the same framing on the integration port, so the
+ * throughput and latency of the transport can be measured without a Zotero install.
+ * Running main() starts the server and the LibreOffice side of the connection in the
+ * same process and sends Application_ping requests over it:
+ * 
+ * ./runbenchmarks.sh transport [requests] [window] [payloadBytes]
+ * 
+ * window is the number of requests in flight, and should not exceed
+ * Comm.MAX_PENDING_FRAMES, since requests and responses are written and read on one thread.
+ */
+class FakeZoteroServer {
+	private ServerSocketChannel mServerChannel;
+	private SocketChannel mChannel;
+	private ByteBuffer mHeader = ByteBuffer.allocate(8);
+	
+	static class Frame {
+		int transactionID;
+		String payload;
+	}
+	
+	FakeZoteroServer(int port) throws IOException {
+		mServerChannel = ServerSocketChannel.open();
+		mServerChannel.socket().setReuseAddress(true);
+		mServerChannel.bind(new InetSocketAddress("127.0.0.1", port));
+	}
+	
+	/**
+	 * Waits for LibreOffice to connect
+	 * @return The command LibreOffice sent on connecting
+	 */
+	String accept() throws IOException {
+		mChannel = mServerChannel.accept();
+		mChannel.socket().setTcpNoDelay(true);
+		return receive().payload;
+	}
+	
+	/**
+	 * Sends a request, as Comm.sendCommandAsync does in Zotero
+	 */
+	void send(int transactionID, String payload) throws IOException {
+		byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = ByteBuffer.allocate(8+bytes.length);
+		frame.putInt(transactionID).putInt(bytes.length).put(bytes).flip();
+		while(frame.hasRemaining()) mChannel.write(frame);
+	}
+	
+	/**
+	 * Reads the next frame from LibreOffice
+	 */
+	Frame receive() throws IOException {
+		mHeader.clear();
+		readFully(mHeader);
+		mHeader.flip();
+		Frame frame = new Frame();
+		frame.transactionID = mHeader.getInt();
+		ByteBuffer payload = ByteBuffer.allocate(mHeader.getInt());
+		readFully(payload);
+		frame.payload = new String(payload.array(), StandardCharsets.UTF_8);
+		return frame;
+	}
+	
+	void close() throws IOException {
+		if(mChannel != null) mChannel.close();
+		mServerChannel.close();
+	}
+	
+	private void readFully(ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(mChannel.read(buffer) == -1) throw new EOFException();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		int requests = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int window = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		int payloadBytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		
+		char[] pingChars = new char[payloadBytes];
+		Arrays.fill(pingChars, 'x');
+		String request = "[\"Application_ping\",[\""+new String(pingChars)+"\"]]";
+		
+		FakeZoteroServer server = new FakeZoteroServer(CommServer.PORT);
+		// Connect the way a toolbar button does
+		Comm.sendCommand("ping");
+		String command = server.accept();
+		ZoteroOpenOfficeIntegrationImpl.debugPrint("Fake Zotero received "+command);
+		
+		long[] sentAt = new long[requests];
+		long[] latencies = new long[requests];
+		int sent = 0, received = 0;
+		long start = System.nanoTime();
+		while(received < requests) {
+			while(sent < requests && sent-received < window) {
+				sentAt[sent] = System.nanoTime();
+				server.send(sent+1, request);
+				sent++;
+			}
+			Frame response = server.receive();
+			if(response.payload.startsWith("ERR:")) throw new Exception(response.payload);
+			int i = response.transactionID-1;
+			latencies[i] = System.nanoTime()-sentAt[i];
+			received++;
+		}
+		long elapsed = System.nanoTime()-start;
+		
+		Arrays.sort(latencies);
+		ZoteroOpenOfficeIntegrationImpl.debugPrint(String.format(
+				"%d requests, window %d, %d byte payload: %.0f requests/s, latency p50 %.1f us, p99 %.1f us, max %.1f us",
+				requests, window, payloadBytes, requests/(elapsed/1e9),
+				latencies[requests/2]/1e3, latencies[(int) (requests*0.99)]/1e3, latencies[requests-1]/1e3));
+		
+		server.close();
+		System.exit(0);
+	}
+}
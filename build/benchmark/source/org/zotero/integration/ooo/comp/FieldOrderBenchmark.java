@@ -0,0 +1,75 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.sun.star.container.XNameAccess;
+
+/**
+ * Measures putting fields in document order with a single walk of the text
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FieldOrderBenchmark {
+	@Param({"1000", "5000"})
+	int citations;
+	
+	SyntheticDocument document;
+	ArrayList<ReferenceMark> marks;
+	
+	@Setup
+	public void setup() throws Exception {
+		document = new SyntheticDocument(citations);
+		MarkManager markManager = new MarkManager("benchmark", document.component);
+		marks = markManager.getMarks(new XNameAccess[] {document.referenceMarks}, "ReferenceMark");
+		Collections.shuffle(marks, new Random(42));
+	}
+	
+	@Benchmark
+	public FieldOrder walk() throws Exception {
+		return new FieldOrder(document.textDocument, "ReferenceMark");
+	}
+	
+	@Benchmark
+	public ArrayList<ReferenceMark> walkAndSort() throws Exception {
+		ArrayList<ReferenceMark> sorted = new ArrayList<ReferenceMark>(marks);
+		new FieldOrder(document.textDocument, "ReferenceMark").sort(sorted);
+		return sorted;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.sun.star.container.XNameAccess;
+
+/**
+ * Measures the mark index: revalidating it against the document, looking marks up by ID
+ * for Field_* commands, and reading field codes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MarkManagerBenchmark {
+	@Param({"1000", "5000"})
+	int citations;
+	
+	XNameAccess[] containers;
+	MarkManager markManager;
+	ArrayList<ReferenceMark> marks;
+	
+	@Setup
+	public void setup() throws Exception {
+		SyntheticDocument document = new SyntheticDocument(citations);
+		containers = new XNameAccess[] {document.referenceMarks};
+		markManager = new MarkManager("benchmark", document.component);
+		marks = markManager.getMarks(containers, "ReferenceMark");
+	}
+	
+	@Benchmark
+	public ArrayList<ReferenceMark> getMarks() throws Exception {
+		return markManager.getMarks(containers, "ReferenceMark");
+	}
+	
+	@Benchmark
+	public void getMarkForID(Blackhole blackhole) {
+		for(ReferenceMark mark : marks) {
+			blackhole.consume(markManager.getMarkForID(markManager.getIDForMark(mark)));
+		}
+	}
+	
+	@Benchmark
+	public void getCode(Blackhole blackhole) throws Exception {
+		for(ReferenceMark mark : marks) {
+			blackhole.consume(mark.getCode());
+		}
+	}
+}
@@ -0,0 +1,217 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import com.sun.star.beans.XPropertySet;
+import com.sun.star.container.NoSuchElementException;
+import com.sun.star.container.XEnumeration;
+import com.sun.star.container.XEnumerationAccess;
+import com.sun.star.container.XNameAccess;
+import com.sun.star.container.XNamed;
+import com.sun.star.lang.XComponent;
+import com.sun.star.lang.XServiceInfo;
+import com.sun.star.text.XText;
+import com.sun.star.text.XTextContent;
+import com.sun.star.text.XTextDocument;
+import com.sun.star.text.XTextRange;
+import com.sun.star.util.XModifiable;
+
+/**
+ * A document with many citations, built from local stand-ins for the UNO objects the
+ * integration reads, so that benchmarks measure the integration and not LibreOffice.
+ * Every fifth citation is in a footnote.
+ */
+class SyntheticDocument {
+	static final int CITATIONS_PER_PARAGRAPH = 3;
+	static final int WORDS_PER_CITATION = 40;
+	
+	XComponent component;
+	XTextDocument textDocument;
+	XNameAccess referenceMarks;
+	ArrayList<String> markNames = new ArrayList<String>();
+	ArrayList<String> codes = new ArrayList<String>();
+	
+	private HashMap<String, Object> marksByName = new HashMap<String, Object>();
+	private Random random = new Random(42);
+	
+	/**
+	 * Implements UNO interfaces with a handler keyed by method name
+	 */
+	interface Methods {
+		Object invoke(String method, Object[] args) throws Exception;
+	}
+	
+	static Object stub(final Methods methods, Class<?>... interfaces) {
+		return Proxy.newProxyInstance(SyntheticDocument.class.getClassLoader(), interfaces, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if(method.getName().equals("equals")) return proxy == args[0];
+				if(method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+				if(method.getName().equals("toString")) return "SyntheticDocument stub";
+				return methods.invoke(method.getName(), args);
+			}
+		});
+	}
+	
+	static XEnumeration enumeration(List<?> elements) {
+		final Iterator<?> iterator = elements.iterator();
+		return (XEnumeration) stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(method.equals("hasMoreElements")) return iterator.hasNext();
+				if(!iterator.hasNext()) throw new NoSuchElementException();
+				return iterator.next();
+			}
+		}, XEnumeration.class);
+	}
+	
+	SyntheticDocument(int citations) {
+		final ArrayList<Object> bodyParagraphs = new ArrayList<Object>();
+		final Object bodyText = text(bodyParagraphs, false);
+		
+		ArrayList<Object> portions = null;
+		for(int i=0; i<citations; i++) {
+			if(i % CITATIONS_PER_PARAGRAPH == 0) {
+				portions = new ArrayList<Object>();
+				bodyParagraphs.add(paragraph(portions));
+			}
+			portions.add(portion("Text", null));
+			
+			if(i % 5 == 4) {
+				ArrayList<Object> notePortions = new ArrayList<Object>();
+				ArrayList<Object> noteParagraphs = new ArrayList<Object>();
+				noteParagraphs.add(paragraph(notePortions));
+				Object noteText = text(noteParagraphs, true);
+				addCitation(notePortions, noteText, i);
+				portions.add(portion("Footnote", noteText));
+			} else {
+				addCitation(portions, bodyText, i);
+			}
+		}
+		
+		textDocument = (XTextDocument) stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				return bodyText;
+			}
+		}, XTextDocument.class);
+		
+		// The document counts as modified, so the mark index checks every mark
+		component = (XComponent) stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				return method.equals("isModified") ? true : null;
+			}
+		}, XComponent.class, XModifiable.class);
+		
+		// The document's index is not in document order
+		final String[] names = markNames.toArray(new String[markNames.size()]);
+		Collections.shuffle(java.util.Arrays.asList(names), random);
+		referenceMarks = (XNameAccess) stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(method.equals("getElementNames")) return names;
+				if(method.equals("getByName")) return marksByName.get(args[0]);
+				if(method.equals("hasByName")) return marksByName.containsKey(args[0]);
+				return null;
+			}
+		}, XNameAccess.class);
+	}
+	
+	private void addCitation(List<Object> portions, final Object text, int i) {
+		String code = getCode(i);
+		final String name = Document.PREFIXES[0]+code+" RND"+Document.getRandomString(Document.REFMARK_ADD_CHARS);
+		codes.add(code);
+		markNames.add(name);
+		
+		final XTextRange anchor = (XTextRange) stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(method.equals("getText")) return text;
+				return "{Citation}";
+			}
+		}, XTextRange.class);
+		Object mark = stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(method.equals("getName")) return name;
+				if(method.equals("getAnchor")) return anchor;
+				if(method.equals("supportsService")) return false;
+				return null;
+			}
+		}, XNamed.class, XTextContent.class, XServiceInfo.class);
+		marksByName.put(name, mark);
+		
+		// A ReferenceMark shows up as a start and an end portion
+		portions.add(portion("ReferenceMark", mark));
+		portions.add(portion("Text", null));
+		portions.add(portion("ReferenceMark", mark));
+	}
+	
+	private String getCode(int i) {
+		StringBuilder sb = new StringBuilder("ITEM CSL_CITATION {\"citationID\":\"")
+			.append(Document.getRandomString(8))
+			.append("\",\"properties\":{\"noteIndex\":0},\"citationItems\":[{\"id\":")
+			.append(i)
+			.append(",\"itemData\":{\"type\":\"article-journal\",\"title\":\"");
+		for(int j=0; j<WORDS_PER_CITATION; j++) {
+			sb.append(Document.getRandomString(3+random.nextInt(8))).append(' ');
+		}
+		return sb.append("\"}}]}").toString();
+	}
+	
+	private static Object text(final List<Object> paragraphs, final boolean isNote) {
+		return stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(method.equals("createEnumeration")) return enumeration(paragraphs);
+				if(method.equals("supportsService")) return isNote && args[0].equals("com.sun.star.text.Footnote");
+				return null;
+			}
+		}, XText.class, XEnumerationAccess.class, XServiceInfo.class);
+	}
+	
+	private static Object paragraph(final List<Object> portions) {
+		return stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(method.equals("createEnumeration")) return enumeration(portions);
+				if(method.equals("supportsService")) return args[0].equals("com.sun.star.text.Paragraph");
+				// getPropertyValue("TextSection")
+				return null;
+			}
+		}, XEnumerationAccess.class, XServiceInfo.class, XPropertySet.class);
+	}
+	
+	private static Object portion(final String type, final Object content) {
+		return stub(new Methods() {
+			public Object invoke(String method, Object[] args) throws Exception {
+				if(args[0].equals("TextPortionType")) return type;
+				return content;
+			}
+		}, XPropertySet.class);
+	}
+}
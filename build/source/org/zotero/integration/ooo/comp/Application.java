@@ -24,7 +24,10 @@
 
 package org.zotero.integration.ooo.comp;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.sun.star.beans.PropertyValue;
 import com.sun.star.container.XNameAccess;
@@ -42,6 +45,17 @@ public class Application {
 	static SaveEventListener saveEventListener;
 	private static HashMap <Integer, Document> documents = new HashMap<Integer, Document>();
 	private static int lastDocumentID = 0;
+	
+	// Field indices of open documents by RuntimeUID, least recently used first
+	static final int MAX_INDEXED_DOCUMENTS = 8;
+	@SuppressWarnings("serial")
+	private static LinkedHashMap<String, MarkManager> markManagers = new LinkedHashMap<String, MarkManager>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, MarkManager> eldest) {
+			if(size() <= MAX_INDEXED_DOCUMENTS) return false;
+			eldest.getValue().detach();
+			return true;
+		}
+	};
 
 	public Application(XComponentContext aCtx) throws Exception {
 		ctx = aCtx;
@@ -53,6 +67,9 @@ public class Application {
 	}
 
 	public int getActiveDocumentID() throws Exception {
+		// Zotero runs one transaction at a time, so any still open were abandoned
+		abandonTransactions();
+		
 		if(lastDocumentID == Integer.MAX_VALUE) lastDocumentID = 0;
 		Integer documentID = ++lastDocumentID;
 		Document document;
@@ -74,6 +91,43 @@ public class Application {
 		documents.remove(documentID);
 	}
 	
+	/**
+	 * Ends transactions that Zotero never completed, e.g. because of an error in Zotero
+	 * or a lost connection
+	 */
+	static void abandonTransactions() {
+		for(Document document : new ArrayList<Document>(documents.values())) {
+			document.abandon();
+		}
+	}
+	
+	/**
+	 * Gets the field index for a document, creating it if the document has none yet
+	 * @param document Document of the current transaction
+	 */
+	MarkManager getMarkManager(Document document) {
+		synchronized(markManagers) {
+			MarkManager markManager = markManagers.get(document.runtimeUID);
+			if(markManager == null) {
+				markManager = new MarkManager(document.runtimeUID, document.component);
+				markManager.attach();
+				markManagers.put(document.runtimeUID, markManager);
+			}
+			markManager.setDocument(document);
+			return markManager;
+		}
+	}
+	
+	/**
+	 * Drops the field index of a document that has been closed
+	 * @param runtimeUID
+	 */
+	static void documentDisposed(String runtimeUID) {
+		synchronized(markManagers) {
+			markManagers.remove(runtimeUID);
+		}
+	}
+	
 	private void init() throws Exception {
 		// get factory and desktop
 		factory = (XMultiServiceFactory) UnoRuntime.queryInterface(XMultiServiceFactory.class, ctx.getServiceManager());
@@ -25,7 +25,7 @@
 package org.zotero.integration.ooo.comp;
 
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 class Comm {
 	static final int API_VERSION = 3;
@@ -36,7 +36,9 @@ class Comm {
 			"appear to match the version installed in Zotero. Please ensure both "+
 			"components are up to date and try again.";
 	static Application application;
-	static BlockingQueue<CommFrame> writeQueue = new SynchronousQueue<CommFrame>();
+	// Frames read ahead of the one being executed; CommReader blocks when this is full
+	static final int MAX_PENDING_FRAMES = 16;
+	static BlockingQueue<CommFrame> writeQueue = new LinkedBlockingQueue<CommFrame>(MAX_PENDING_FRAMES);
 	static private Thread serverThread;
 	
 	/**
@@ -0,0 +1,150 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Reads typed command arguments directly from a JSON parser as they are needed
+ */
+class CommArgs {
+	private JsonParser mParser;
+	private JsonToken mPeekedToken;
+	private int mDepth = 0;
+	
+	CommArgs(JsonParser aParser) {
+		mParser = aParser;
+	}
+	
+	int nextInt() throws IOException, ParseException {
+		JsonToken token = nextToken();
+		if(token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+			throw unexpected(token);
+		}
+		return mParser.getIntValue();
+	}
+	
+	Number nextNumber() throws IOException, ParseException {
+		JsonToken token = nextToken();
+		if(token != JsonToken.VALUE_NUMBER_INT && token != JsonToken.VALUE_NUMBER_FLOAT) {
+			throw unexpected(token);
+		}
+		return mParser.getNumberValue();
+	}
+	
+	boolean nextBoolean() throws IOException, ParseException {
+		JsonToken token = nextToken();
+		if(token == JsonToken.VALUE_TRUE) return true;
+		if(token == JsonToken.VALUE_FALSE) return false;
+		throw unexpected(token);
+	}
+	
+	String nextString() throws IOException, ParseException {
+		JsonToken token = nextToken();
+		if(token == JsonToken.VALUE_NULL) return null;
+		if(token != JsonToken.VALUE_STRING) throw unexpected(token);
+		return mParser.getText();
+	}
+	
+	ArrayList<Integer> nextIntList() throws IOException, ParseException {
+		ArrayList<Integer> list = new ArrayList<Integer>();
+		int depth = beginArray();
+		while(hasNext()) list.add(nextInt());
+		endArray(depth);
+		return list;
+	}
+	
+	ArrayList<Number> nextNumberList() throws IOException, ParseException {
+		ArrayList<Number> list = new ArrayList<Number>();
+		int depth = beginArray();
+		while(hasNext()) list.add(nextNumber());
+		endArray(depth);
+		return list;
+	}
+	
+	ArrayList<String> nextStringList() throws IOException, ParseException {
+		ArrayList<String> list = new ArrayList<String>();
+		int depth = beginArray();
+		while(hasNext()) list.add(nextString());
+		endArray(depth);
+		return list;
+	}
+	
+	/**
+	 * Enters an array, whose elements can then be read while hasNext() is true
+	 * @return Depth of the array, to be passed to endArray()
+	 */
+	int beginArray() throws IOException, ParseException {
+		JsonToken token = nextToken();
+		if(token != JsonToken.START_ARRAY) throw unexpected(token);
+		return mDepth;
+	}
+	
+	/**
+	 * Checks whether the innermost array has more elements
+	 */
+	boolean hasNext() throws IOException {
+		if(mPeekedToken == null) mPeekedToken = mParser.nextToken();
+		return mPeekedToken != null && mPeekedToken != JsonToken.END_ARRAY;
+	}
+	
+	/**
+	 * Leaves an array entered with beginArray(), skipping whatever has not been read,
+	 * including the rest of any nested arrays
+	 * @param depth Value returned by beginArray()
+	 */
+	void endArray(int depth) throws IOException, ParseException {
+		while(mDepth >= depth) {
+			JsonToken token = nextToken();
+			if(token == null) throw unexpected(token);
+		}
+	}
+	
+	private JsonToken nextToken() throws IOException {
+		JsonToken token;
+		if(mPeekedToken != null) {
+			token = mPeekedToken;
+			mPeekedToken = null;
+		} else {
+			token = mParser.nextToken();
+		}
+		
+		if(token == JsonToken.START_ARRAY || token == JsonToken.START_OBJECT) {
+			mDepth++;
+		} else if(token == JsonToken.END_ARRAY || token == JsonToken.END_OBJECT) {
+			mDepth--;
+		}
+		return token;
+	}
+	
+	private static ParseException unexpected(JsonToken token) {
+		return new ParseException("Unexpected "+(token == null ? "end of message" : token.toString()), 0);
+	}
+}
@@ -25,25 +25,32 @@
 
 package org.zotero.integration.ooo.comp;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 
 public class CommCommand implements CommFrame {
-	private String mCommand;
+	private byte[] mBytes;
 	
 	CommCommand(String aCommand) {
-		mCommand = "\""+aCommand+"\"";
+		String command = "\""+aCommand+"\"";
+		try {
+			mBytes = command.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			mBytes = command.getBytes();
+		}
 	}
 	
 	public int getTransactionID() {
 		return 0;
 	}
 
-	public byte[] getBytes() {
-		try {
-			return mCommand.getBytes("UTF-8");
-		} catch (UnsupportedEncodingException e) {
-			return mCommand.getBytes();
-		}
+	public int getLength() {
+		return mBytes.length;
+	}
+
+	public void writePayload(OutputStream outputStream) throws IOException {
+		outputStream.write(mBytes);
 	}
 
 }
@@ -24,7 +24,19 @@
 
 package org.zotero.integration.ooo.comp;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 interface CommFrame {
 	int getTransactionID();
-	byte[] getBytes();
+	
+	/**
+	 * Gets the length of the payload in bytes
+	 */
+	int getLength();
+	
+	/**
+	 * Writes the payload, which must be exactly getLength() bytes long
+	 */
+	void writePayload(OutputStream outputStream) throws IOException;
 }
@@ -24,20 +24,240 @@
 
 package org.zotero.integration.ooo.comp;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 
 class CommMessage implements CommFrame {
-	static ObjectMapper objectMapper = new ObjectMapper();
+	static JsonFactory jsonFactory = new JsonFactory()
+			.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+	private static HashMap<String, CommHandler> handlers = new HashMap<String, CommHandler>();
+	private static HashMap<String, FieldHandler> fieldHandlers = new HashMap<String, FieldHandler>();
+	// The connection the request arrived on, which is the only one its response may go to
+	final SocketChannel channel;
 	private byte[] mInputBytes;
+	private int mInputLength;
 	private byte[] mOutputBytes;
+	private Object mOutput;
+	private int mOutputLength = -1;
 	private int mTransactionID;
 	
-	CommMessage(int aTransactionID, byte aBytes[]) {
+	interface DocumentHandler {
+		Object execute(Document document, CommArgs args) throws Exception;
+	}
+	
+	interface FieldHandler {
+		Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception;
+	}
+	
+	static {
+		handlers.put("Application_getActiveDocument", new CommHandler() {
+			public Object execute(CommArgs args) throws Exception {
+				int documentID = Comm.application.getActiveDocumentID();
+				Object[] out = {Comm.API_VERSION, documentID, Comm.application.getDocument(documentID).runtimeUID};
+				return out;
+			}
+		});
+		
+		// Returns its argument; lets a client check and measure the connection
+		handlers.put("Application_ping", new CommHandler() {
+			public Object execute(CommArgs args) throws Exception {
+				return args.hasNext() ? args.nextString() : null;
+			}
+		});
+		// Returns the metrics report, also writing it to a file in the temp directory if
+		// possible
+		handlers.put("Application_getDiagnostics", new CommHandler() {
+			public Object execute(CommArgs args) throws Exception {
+				String report = Metrics.getReport();
+				try {
+					Metrics.dump(report);
+				} catch(Exception e) {
+					e.printStackTrace();
+				}
+				return report;
+			}
+		});
+		
+		putDocumentHandler("Document_displayAlert", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				return document.displayAlert(args.nextString(), args.nextInt(), args.nextInt());
+			}
+		});
+		putDocumentHandler("Document_activate", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				document.activate();
+				return null;
+			}
+		});
+		putDocumentHandler("Document_canInsertField", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				return document.canInsertField(args.nextString());
+			}
+		});
+		putDocumentHandler("Document_cursorInField", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				ReferenceMark field = document.cursorInField(args.nextString());
+				if(field == null) return null;
+				Object[] out = {document.mMarkManager.getIDForMark(field), field.getCode(), field.getNoteIndex()};
+				return out;
+			}
+		});
+		putDocumentHandler("Document_getDocumentData", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				return document.getDocumentData();
+			}
+		});
+		putDocumentHandler("Document_setDocumentData", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				document.setDocumentData(args.nextString());
+				return null;
+			}
+		});
+		putDocumentHandler("Document_insertField", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				ReferenceMark field = document.insertField(args.nextString(), args.nextInt());
+				Object[] out = {document.mMarkManager.getIDForMark(field), field.getCode(), field.getNoteIndex()};
+				return out;
+			}
+		});
+		putDocumentHandler("Document_getFields", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				return getFields(document, args.nextString());
+			}
+		});
+		putDocumentHandler("Document_getFieldsDelta", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				return getFieldsDelta(document, args.nextString(), args.nextIntList(), args.nextStringList());
+			}
+		});
+		putDocumentHandler("Document_setBibliographyStyle", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				document.setBibliographyStyle(args.nextInt(), args.nextInt(), args.nextInt(), args.nextInt(),
+						args.nextNumberList(), args.nextInt());
+				return null;
+			}
+		});
+		putDocumentHandler("Document_cleanup", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				document.cleanup();
+				return null;
+			}
+		});
+		putDocumentHandler("Document_complete", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				document.complete();
+				return null;
+			}
+		});
+		putDocumentHandler("Document_convertAll", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				ArrayList<Integer> fieldIDs = args.nextIntList();
+				ArrayList<ReferenceMark> fields = new ArrayList<ReferenceMark>(fieldIDs.size());
+				for(Integer fieldID : fieldIDs) {
+					fields.add(document.mMarkManager.getMarkForID(fieldID));
+				}
+				document.convertAll(fields, args.nextString(), args.nextIntList());
+				return null;
+			}
+		});
+		putDocumentHandler("Document_applyFieldOps", new DocumentHandler() {
+			public Object execute(Document document, CommArgs args) throws Exception {
+				return applyFieldOps(document, args);
+			}
+		});
+		
+		putFieldHandler("Field_delete", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				field.delete();
+				return null;
+			}
+		});
+		putFieldHandler("Field_select", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				field.select();
+				return null;
+			}
+		});
+		putFieldHandler("Field_removeCode", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				field.removeCode();
+				return null;
+			}
+		});
+		putFieldHandler("Field_getText", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				return field.getText();
+			}
+		});
+		putFieldHandler("Field_setText", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				field.setText(args.nextString(), args.nextBoolean());
+				return null;
+			}
+		});
+		putFieldHandler("Field_getCode", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				return field.getCode();
+			}
+		});
+		putFieldHandler("Field_setCode", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				field.setCode(args.nextString());
+				return null;
+			}
+		});
+		putFieldHandler("Field_convert", new FieldHandler() {
+			public Object execute(Document document, ReferenceMark field, CommArgs args) throws Exception {
+				document.convert(field, args.nextString(), args.nextInt());
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Registers a command whose first argument is a document ID
+	 */
+	private static void putDocumentHandler(String command, final DocumentHandler handler) {
+		handlers.put(command, new CommHandler() {
+			public Object execute(CommArgs args) throws Exception {
+				return handler.execute(Comm.application.getDocument(args.nextInt()), args);
+			}
+		});
+	}
+	
+	/**
+	 * Registers a command whose first arguments are a document ID and a field ID. The
+	 * command is also available to Document_applyFieldOps.
+	 */
+	private static void putFieldHandler(String command, final FieldHandler handler) {
+		fieldHandlers.put(command, handler);
+		handlers.put(command, new CommHandler() {
+			public Object execute(CommArgs args) throws Exception {
+				Document document = Comm.application.getDocument(args.nextInt());
+				return handler.execute(document, document.mMarkManager.getMarkForID(args.nextInt()), args);
+			}
+		});
+	}
+	
+	/**
+	 * @param aChannel The connection the request arrived on
+	 * @param aBytes Buffer holding the request, from CommReader.obtainBuffer()
+	 * @param aLength Length of the request
+	 */
+	CommMessage(SocketChannel aChannel, int aTransactionID, byte aBytes[], int aLength) {
+		channel = aChannel;
 		mTransactionID = aTransactionID;
 		mInputBytes = aBytes;
+		mInputLength = aLength;
 	}
 	
 	/**
@@ -48,17 +268,18 @@ class CommMessage implements CommFrame {
 	}
 	
 	/**
-	 * Gets the response to the message encapsulated by this CommMessage
+	 * Executes the message, if it has not been executed yet, and gets the length of the
+	 * response. The response is serialized once here to count its bytes and once more in
+	 * writePayload, so it is never held in memory as a whole.
 	 */
-	@SuppressWarnings("unchecked")
-	public byte[] getBytes() {
-		if(mOutputBytes == null) {
+	public int getLength() {
+		if(mOutputLength == -1) {
 			try {
-				// Parse message
-				ArrayList<Object> message = objectMapper.readValue(mInputBytes, 0, mInputBytes.length, ArrayList.class);
+				mOutput = execute();
 				
-				// Execute the command
-				mOutputBytes = objectMapper.writeValueAsBytes(execute(message));
+				CountingOutputStream countingStream = new CountingOutputStream();
+				writeOutput(countingStream);
+				mOutputLength = countingStream.count;
 			} catch(Exception e) {
 				String errString = Document.getErrorString(e);
 				try {
@@ -66,92 +287,202 @@ class CommMessage implements CommFrame {
 				} catch(Exception e1) {
 					mOutputBytes = "ERR:An unexpected exception occurred".getBytes();
 				}
+				mOutputLength = mOutputBytes.length;
 			}
+			CommReader.recycleBuffer(mInputBytes);
+			mInputBytes = null;
 		}
-		return mOutputBytes;
+		return mOutputLength;
 	}
 	
-	@SuppressWarnings("unchecked")
-	private Object execute(ArrayList<Object> message) throws Exception {
-		String command = (String) message.get(0);
-		ArrayList<Object> args = (ArrayList<Object>) message.get(1);
-		
-		if(command.equals("Application_getActiveDocument")) {
-			Object[] out = {Comm.API_VERSION, Comm.application.getActiveDocumentID()};
-			return out;
+	/**
+	 * Writes the response to the message encapsulated by this CommMessage. The result is
+	 * released afterwards, since a message is written at most once: CommServer drops
+	 * messages from a lost connection rather than writing them again.
+	 */
+	public void writePayload(OutputStream outputStream) throws IOException {
+		if(mOutputBytes != null) {
+			outputStream.write(mOutputBytes);
 		} else {
-			int documentID = (Integer) args.get(0);
-			Document document = Comm.application.getDocument(documentID);
-			
-			if(command.equals("Document_displayAlert")) {
-				return document.displayAlert((String) args.get(1), (Integer) args.get(2), (Integer) args.get(3));
-			} else if(command.equals("Document_activate")) {
-				document.activate();
-			} else if(command.equals("Document_canInsertField")) {
-				return document.canInsertField((String) args.get(1));
-			} else if(command.equals("Document_cursorInField")) {
-				ReferenceMark field = document.cursorInField((String) args.get(1));
-				if(field != null) {
-					Object[] out = {document.mMarkManager.getIDForMark(field), field.getCode(), field.getNoteIndex()};
-					return out;
-				}
-			} else if(command.equals("Document_getDocumentData")) {
-				return document.getDocumentData();
-			} else if(command.equals("Document_setDocumentData")) {
-				document.setDocumentData((String) args.get(1));
-			} else if(command.equals("Document_insertField")) {
-				ReferenceMark field = document.insertField((String) args.get(1), (Integer) args.get(2));
-				Object[] out = {document.mMarkManager.getIDForMark(field), field.getCode(), field.getNoteIndex()};
-				return out;
-			} else if(command.equals("Document_getFields")) {
-				ArrayList<ReferenceMark> fields = document.getFields((String) args.get(1));
-				
-				// get codes and rawCodes
-				int numFields = fields.size();
-				int[] fieldIndices = new int[numFields];
-				String[] fieldCodes = new String[numFields];
-				int[] noteIndices = new int[numFields];
-				
-				for(int i=0; i<numFields; i++) {
-					ReferenceMark field = fields.get(i);
-					fieldIndices[i] = document.mMarkManager.getIDForMark(field);
-					fieldCodes[i] = field.getCode();
-					noteIndices[i] = field.getNoteIndex();
-				}
-				
-				Object[] out = {fieldIndices, fieldCodes, noteIndices};
-				return out;
-			} else if(command.equals("Document_setBibliographyStyle")) {
-				ArrayList<Number> arrayList = (ArrayList<Number>) args.get(5);
-				document.setBibliographyStyle((Integer) args.get(1), (Integer) args.get(2),
-					(Integer) args.get(3), (Integer) args.get(4), arrayList, (Integer) args.get(6));
-			} else if(command.equals("Document_cleanup")) {
-				document.cleanup();
-			} else if(command.equals("Document_complete")) {
-				document.complete();
-			} else if(command.startsWith("Field_")) {
-				ReferenceMark field = document.mMarkManager.getMarkForID((Integer) args.get(1));
-				if(command.equals("Field_delete")) {
-					field.delete();
-				} else if(command.equals("Field_select")) {
-					field.select();
-				} else if(command.equals("Field_removeCode")) {
-					field.removeCode();
-				} else if(command.equals("Field_getText")) {
-					return field.getText();
-				} else if(command.equals("Field_setText")) {
-					field.setText((String) args.get(2), (Boolean) args.get(3));
-				} else if(command.equals("Field_getCode")) {
-					return field.getCode();
-				} else if(command.equals("Field_setCode")) {
-					field.setCode((String) args.get(2));
-				} else if(command.equals("Field_convert")) {
-					document.convert(field, (String) args.get(2), (Integer) args.get(3));
-				}
-			} else {
+			try {
+				writeOutput(outputStream);
+			} finally {
+				mOutput = null;
+			}
+		}
+	}
+	
+	/**
+	 * Parses a message of the form [command, [args...]] and executes it, reading the
+	 * arguments as the command handler needs them
+	 */
+	private Object execute() throws Exception {
+		JsonParser parser = jsonFactory.createJsonParser(mInputBytes, 0, mInputLength);
+		try {
+			CommArgs message = new CommArgs(parser);
+			message.beginArray();
+			String command = message.nextString();
+			CommHandler handler = handlers.get(command);
+			if(handler == null) {
 				throw new ParseException(command, 0);
 			}
+			message.beginArray();
+			long start = Metrics.start();
+			try {
+				return handler.execute(message);
+			} finally {
+				Metrics.recordTime(Metrics.COMMAND_PREFIX+command, start);
+			}
+		} finally {
+			parser.close();
+		}
+	}
+	
+	private void writeOutput(OutputStream outputStream) throws IOException {
+		JsonGenerator generator = jsonFactory.createJsonGenerator(outputStream, JsonEncoding.UTF8);
+		writeValue(generator, mOutput);
+		generator.close();
+	}
+	
+	/**
+	 * Writes a command result, which may be null, a Boolean, Number or String, an int[]
+	 * or String[], or an Object[] of these
+	 */
+	static void writeValue(JsonGenerator generator, Object value) throws IOException {
+		if(value == null) {
+			generator.writeNull();
+		} else if(value instanceof String) {
+			generator.writeString((String) value);
+		} else if(value instanceof Integer) {
+			generator.writeNumber((Integer) value);
+		} else if(value instanceof Number) {
+			generator.writeNumber(((Number) value).doubleValue());
+		} else if(value instanceof Boolean) {
+			generator.writeBoolean((Boolean) value);
+		} else if(value instanceof int[]) {
+			generator.writeStartArray();
+			for(int i : (int[]) value) generator.writeNumber(i);
+			generator.writeEndArray();
+		} else if(value instanceof Object[]) {
+			generator.writeStartArray();
+			for(Object element : (Object[]) value) writeValue(generator, element);
+			generator.writeEndArray();
+		} else {
+			throw new IOException("Cannot serialize "+value.getClass().getName());
+		}
+	}
+	
+	private static Object getFields(Document document, String fieldType) throws Exception {
+		ArrayList<ReferenceMark> fields = document.getFields(fieldType);
+		
+		// get codes and rawCodes
+		int numFields = fields.size();
+		int[] fieldIndices = new int[numFields];
+		String[] fieldCodes = new String[numFields];
+		int[] noteIndices = new int[numFields];
+		
+		for(int i=0; i<numFields; i++) {
+			ReferenceMark field = fields.get(i);
+			fieldIndices[i] = document.mMarkManager.getIDForMark(field);
+			fieldCodes[i] = field.getCode();
+			noteIndices[i] = field.getNoteIndex();
+		}
+		
+		Object[] out = {fieldIndices, fieldCodes, noteIndices};
+		return out;
+	}
+	
+	/**
+	 * Gets fields like Document_getFields, but only includes the codes of fields the client
+	 * does not already have
+	 * @param knownFieldIndices IDs of the fields whose codes the client has
+	 * @param knownCodeHashes Hashes of those codes, as previously returned by this command
+	 * @return [fieldIndices, fieldCodes, noteIndices, codeHashes], where fieldCodes[i] is
+	 * null if the client has the code with hash codeHashes[i] for field fieldIndices[i]
+	 */
+	private static Object getFieldsDelta(Document document, String fieldType,
+			ArrayList<Integer> knownFieldIndices, ArrayList<String> knownCodeHashes) throws Exception {
+		HashMap<Integer, String> knownHashesByIndex = new HashMap<Integer, String>();
+		for(int i=0; i<knownFieldIndices.size(); i++) {
+			knownHashesByIndex.put(knownFieldIndices.get(i), knownCodeHashes.get(i));
+		}
+		
+		ArrayList<ReferenceMark> fields = document.getFields(fieldType);
+		int numFields = fields.size();
+		int[] fieldIndices = new int[numFields];
+		String[] fieldCodes = new String[numFields];
+		int[] noteIndices = new int[numFields];
+		String[] codeHashes = new String[numFields];
+		
+		for(int i=0; i<numFields; i++) {
+			ReferenceMark field = fields.get(i);
+			fieldIndices[i] = document.mMarkManager.getIDForMark(field);
+			noteIndices[i] = field.getNoteIndex();
+			String code = field.getCode();
+			codeHashes[i] = Document.getDigest(code);
+			if(!codeHashes[i].equals(knownHashesByIndex.get(fieldIndices[i]))) {
+				fieldCodes[i] = code;
+			}
+		}
+		
+		Object[] out = {fieldIndices, fieldCodes, noteIndices, codeHashes};
+		return out;
+	}
+	
+	/**
+	 * Executes a list of field operations in order, within the undo context of the
+	 * current transaction. Each operation has the form [command, fieldID, args...], where
+	 * command is one of the Field_ commands. Operations are read and executed one at a
+	 * time. A failing operation does not stop the ones after it. The document is in bulk
+	 * edit mode while the operations run.
+	 * @return [results, errors], where errors[i] is null if operation i succeeded
+	 */
+	private static Object applyFieldOps(Document document, CommArgs args) throws Exception {
+		ArrayList<Object> results = new ArrayList<Object>();
+		ArrayList<String> errors = new ArrayList<String>();
+		
+		document.beginBulkEdit();
+		try {
+			int opsDepth = args.beginArray();
+			while(args.hasNext()) {
+				int opDepth = args.beginArray();
+				Object result = null;
+				String error = null;
+				try {
+					String command = args.nextString();
+					FieldHandler handler = fieldHandlers.get(command);
+					if(handler == null) {
+						throw new ParseException(command, 0);
+					}
+					result = handler.execute(document, document.mMarkManager.getMarkForID(args.nextInt()), args);
+				} catch(Exception e) {
+					error = Document.getErrorString(e);
+				}
+				args.endArray(opDepth);
+				results.add(result);
+				errors.add(error);
+			}
+			args.endArray(opsDepth);
+		} finally {
+			document.endBulkEdit();
+		}
+		
+		Object[] out = {results.toArray(), errors.toArray()};
+		return out;
+	}
+	
+	/**
+	 * Discards what is written to it, counting the bytes
+	 */
+	static class CountingOutputStream extends OutputStream {
+		int count = 0;
+		
+		public void write(int b) {
+			count++;
+		}
+		
+		public void write(byte[] b, int off, int len) {
+			count += len;
 		}
-		return null;
 	}
 }
@@ -0,0 +1,81 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered stream over a channel. The buffer is reused for every frame and every
+ * connection.
+ */
+class CommOutputStream extends OutputStream {
+	private ByteBuffer mBuffer;
+	private WritableByteChannel mChannel;
+	
+	CommOutputStream(int aBufferSize) {
+		mBuffer = ByteBuffer.allocateDirect(aBufferSize);
+	}
+	
+	/**
+	 * Directs output to a new channel, discarding anything not yet written
+	 */
+	void setChannel(WritableByteChannel aChannel) {
+		mChannel = aChannel;
+		mBuffer.clear();
+	}
+	
+	public void write(int b) throws IOException {
+		if(!mBuffer.hasRemaining()) writeBuffer();
+		mBuffer.put((byte) b);
+	}
+	
+	public void write(byte[] b, int off, int len) throws IOException {
+		while(len > 0) {
+			if(!mBuffer.hasRemaining()) writeBuffer();
+			int n = Math.min(len, mBuffer.remaining());
+			mBuffer.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+	
+	public void flush() throws IOException {
+		writeBuffer();
+	}
+	
+	private void writeBuffer() throws IOException {
+		mBuffer.flip();
+		try {
+			while(mBuffer.hasRemaining()) {
+				mChannel.write(mBuffer);
+			}
+		} finally {
+			mBuffer.clear();
+		}
+	}
+}
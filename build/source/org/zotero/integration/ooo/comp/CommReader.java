@@ -24,46 +24,127 @@
 
 package org.zotero.integration.ooo.comp;
 
-import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
 
+/**
+ * Reads frames from Zotero and queues them for CommServer. A single CommReader serves
+ * every connection CommServer makes, so reconnecting does not start a new thread.
+ * Reading ahead lets several requests be in flight; when Comm.writeQueue is full the
+ * reader stops reading, which pushes back on Zotero through TCP flow control.
+ */
 public class CommReader implements Runnable {
-	Socket mSocket;
-	DataInputStream mInputStream;
+	// Larger frames are taken to mean the stream is corrupt
+	static final int MAX_FRAME_LENGTH = 64*1024*1024;
+	// Payloads up to this size are read into pooled buffers, which are returned to the
+	// pool once the message has been executed
+	static final int POOLED_BUFFER_SIZE = 64*1024;
+	private static ArrayBlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>(Comm.MAX_PENDING_FRAMES+1);
+	private SocketChannel mChannel;
+	private boolean mStopped = false;
+	private ByteBuffer mHeader = ByteBuffer.allocate(8);
 	
-	public CommReader(Socket aSocket) throws IOException {
-		mSocket = aSocket;
-		mInputStream = new DataInputStream(aSocket.getInputStream());
+	/**
+	 * Starts reading from a newly connected channel
+	 */
+	synchronized void setChannel(SocketChannel aChannel) {
+		mChannel = aChannel;
+		notifyAll();
+	}
+	
+	/**
+	 * Stops reading and closes the current channel
+	 */
+	synchronized void stop() {
+		mStopped = true;
+		if(mChannel != null) {
+			try {
+				mChannel.close();
+			} catch (IOException e) {}
+		}
+		notifyAll();
 	}
 
 	public void run() {
-		try {
-			while(true) {
-				int transactionID = mInputStream.readInt();
-				int length = mInputStream.readInt();
-				byte[] readBytes = new byte[length];
-				mInputStream.readFully(readBytes);
-				try {
-					Comm.writeQueue.put(new CommMessage(transactionID, readBytes));
-				} catch (InterruptedException e) {
-					continue;
-				}
-			}
-		} catch (EOFException e) {
-			// Called when Zotero is closed to disconnect from the channel
+		while(true) {
+			SocketChannel channel;
 			try {
-				mSocket.close();
-			} catch (IOException e1) {}
-			return;
-		} catch (IOException e) {
-			// We have to ignore this too, since it can sometimes wrap a SocketException
+				channel = waitForChannel();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(channel == null) return;
+			
 			try {
-				mSocket.close();
-			} catch (IOException e1) {}
-			return;
+				while(true) {
+					mHeader.clear();
+					readFully(channel, mHeader);
+					mHeader.flip();
+					int transactionID = mHeader.getInt();
+					int length = mHeader.getInt();
+					if(length < 0 || length > MAX_FRAME_LENGTH) {
+						throw new ProtocolException("Invalid frame length "+length);
+					}
+					Metrics.recordBytes(Metrics.FRAME_BYTES_IN, length);
+					byte[] payload = obtainBuffer(length);
+					readFully(channel, ByteBuffer.wrap(payload, 0, length));
+					try {
+						Comm.writeQueue.put(new CommMessage(channel, transactionID, payload, length));
+					} catch (InterruptedException e) {
+						continue;
+					}
+				}
+			} catch (IOException e) {
+				// Called when Zotero is closed to disconnect from the channel, or when
+				// CommServer closes the channel. We have to ignore this. A corrupt frame
+				// also ends up here, and CommServer reconnects.
+				closeChannel(channel);
+			} catch (OutOfMemoryError e) {
+				e.printStackTrace();
+				closeChannel(channel);
+			}
+		}
+	}
+	
+	/**
+	 * Gets a buffer of at least the given length for a payload
+	 */
+	static byte[] obtainBuffer(int length) {
+		if(length > POOLED_BUFFER_SIZE) return new byte[length];
+		byte[] buffer = freeBuffers.poll();
+		return buffer == null ? new byte[POOLED_BUFFER_SIZE] : buffer;
+	}
+	
+	/**
+	 * Returns a buffer from obtainBuffer() to the pool once it is no longer used
+	 */
+	static void recycleBuffer(byte[] buffer) {
+		if(buffer.length == POOLED_BUFFER_SIZE) freeBuffers.offer(buffer);
+	}
+	
+	private void closeChannel(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {}
+		synchronized(this) {
+			if(mChannel == channel) mChannel = null;
+		}
+	}
+	
+	private synchronized SocketChannel waitForChannel() throws InterruptedException {
+		while(mChannel == null && !mStopped) {
+			wait();
+		}
+		return mStopped ? null : mChannel;
+	}
+	
+	private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer) == -1) throw new EOFException();
 		}
 	}
-
 }
@@ -24,44 +24,58 @@
 
 package org.zotero.integration.ooo.comp;
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 
 public class CommServer implements Runnable {
+	static final int PORT = 23116;
+	private CommReader mReader = new CommReader();
+	private CommOutputStream mChannelStream = new CommOutputStream(16384);
+	private DataOutputStream mOutputStream = new DataOutputStream(mChannelStream);
+	
 	/**
 	 * Called when new data is received to handle interfacing with Java methods
 	 */
 	public void run() {
+		Thread readerThread = new Thread(mReader);
+		readerThread.setDaemon(true);
+		readerThread.start();
+		try {
+			writeLoop();
+		} finally {
+			mReader.stop();
+		}
+	}
+	
+	private void writeLoop() {
 		Socket socket;
+		SocketChannel channel;
 		CommFrame deferredFrame = null;
 		
 		while(true) {
-			DataOutputStream outputStream;
 			try {
-				// Open socket and output stream
-				socket = new Socket("127.0.0.1", 23116);
-				socket.setTcpNoDelay(true);
-				outputStream = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 16384));
-				
-				// Start another thread to read from the socket
-				new Thread(new CommReader(socket)).start();
+				// Open channel and start reading from it
+				channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT));
+				channel.socket().setTcpNoDelay(true);
+				mChannelStream.setChannel(channel);
+				mReader.setChannel(channel);
 			} catch (ConnectException e) {
 				try {
 					socket = new Socket("127.0.0.1", 19876);
 					socket.close();
-					Comm.writeQueue.poll();
+					Comm.writeQueue.clear();
 					Comm.showError(Comm.OLD_VERSION_STRING, null);
 				} catch(Exception e1) {
-					Comm.writeQueue.poll();
+					Comm.writeQueue.clear();
 					Comm.showError(Comm.COMMUNICATION_ERROR_STRING, null);
 				}
 				return;
 			} catch (Exception e) {
-				Comm.writeQueue.poll();
+				Comm.writeQueue.clear();
 				Comm.showError(Document.getErrorString(e), e);
 				return;
 			}
@@ -81,23 +95,33 @@ public class CommServer implements Runnable {
 						deferredFrame = null;
 					}
 					
-					byte[] payload = frame.getBytes();
-					//ZoteroOpenOfficeIntegrationImpl.debugPrint("Writing "+new String(payload));
+					// Requests read from a connection that was since lost are dropped, since
+					// their transaction IDs mean nothing to the new Zotero session
+					if(frame instanceof CommMessage && ((CommMessage) frame).channel != channel) {
+						continue;
+					}
+					
+					// Executes the command, if the frame is a message
+					int length = frame.getLength();
+					Metrics.recordBytes(Metrics.FRAME_BYTES_OUT, length);
 					
 					try {
-						outputStream.writeInt(frame.getTransactionID());
-						outputStream.writeInt(payload.length);
-						outputStream.write(payload);
-						outputStream.flush();
-					} catch(SocketException e) {
+						mOutputStream.writeInt(frame.getTransactionID());
+						mOutputStream.writeInt(length);
+						frame.writePayload(mOutputStream);
+						mOutputStream.flush();
+					} catch(IOException e) {
+						// Connection lost; reconnect and write the frame again
+						try {
+							channel.close();
+						} catch(IOException e1) {}
 						deferredFrame = frame;
+						Application.abandonTransactions();
 						break;
-					} catch(IOException e) {
-						Comm.showError(Comm.COMMUNICATION_ERROR_STRING, e);
 					}
 				}
 			} catch (Exception e) {
-				Comm.writeQueue.poll();
+				Comm.writeQueue.clear();
 				Comm.showError(Document.getErrorString(e), e);
 				return;
 			}
@@ -28,8 +28,10 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Random;
 import java.util.stream.Collectors;
 
@@ -43,15 +45,16 @@ import com.sun.star.beans.PropertyValue;
 import com.sun.star.beans.XPropertySet;
 import com.sun.star.container.XEnumeration;
 import com.sun.star.container.XEnumerationAccess;
-import com.sun.star.container.XIndexAccess;
 import com.sun.star.container.XNameAccess;
 import com.sun.star.container.XNameContainer;
 import com.sun.star.container.XNamed;
+import com.sun.star.document.XActionLockable;
 import com.sun.star.document.XUndoManager;
 import com.sun.star.document.XUndoManagerSupplier;
 import com.sun.star.frame.XController;
 import com.sun.star.frame.XDesktop;
 import com.sun.star.frame.XFrame;
+import com.sun.star.frame.XModel;
 import com.sun.star.lang.XComponent;
 import com.sun.star.lang.XMultiServiceFactory;
 import com.sun.star.lang.XServiceInfo;
@@ -75,7 +78,6 @@ import com.sun.star.text.XTextSectionsSupplier;
 import com.sun.star.text.XTextViewCursor;
 import com.sun.star.text.XTextViewCursorSupplier;
 import com.sun.star.uno.UnoRuntime;
-import com.sun.star.util.InvalidStateException;
 
 public class Document {
 	static final int NOTE_FOOTNOTE = 1;
@@ -96,6 +98,8 @@ public class Document {
 	Properties properties;
 	MarkManager mMarkManager;
 	XUndoManager undoManager;
+	private boolean inBulkEdit = false;
+	private XTextCursor savedSelection;
 	
 	private static boolean checkExperimentalMode = true;
 	private static boolean statusExperimentalMode = false;
@@ -104,6 +108,7 @@ public class Document {
 	static final String[] PREFS_PROPERTIES = {"ZOTERO_PREF", "CSL_PREF"};
 	static final String FIELD_PLACEHOLDER = "{Citation}";
 	static final String BOOKMARK_REFERENCE_PROPERTY = "ZOTERO_BREF_";
+	static final String TEXT_DIGEST_PROPERTY = "ZOTERO_TEXT_";
 	static final String UNDO_RECORD_NAME = "Zotero Action"; 
 	
 	static final int BOOKMARK_ADD_CHARS = 12;
@@ -130,7 +135,7 @@ public class Document {
 		textRangeCompare = (XTextRangeCompare) UnoRuntime.queryInterface(XTextRangeCompare.class, text);
 		properties = new Properties(component);
 		runtimeUID = (String) ((XPropertySet) UnoRuntime.queryInterface(XPropertySet.class, component)).getPropertyValue("RuntimeUID");
-		mMarkManager = new MarkManager(this);
+		mMarkManager = app.getMarkManager(this);
 		XUndoManagerSupplier ums = (XUndoManagerSupplier) UnoRuntime.queryInterface(XUndoManagerSupplier.class, component); 
 		undoManager = ums.getUndoManager();
 		undoManager.enterUndoContext(UNDO_RECORD_NAME);
@@ -138,9 +143,76 @@ public class Document {
 	
 	public void cleanup() {}
 
-	public void complete() throws InvalidStateException {
-		undoManager.leaveUndoContext();
-		app.documentComplete(ID);
+	public void complete() throws Exception {
+		try {
+			properties.flush();
+		} finally {
+			undoManager.leaveUndoContext();
+			app.documentComplete(ID);
+			Metrics.transactionComplete();
+		}
+	}
+	
+	/**
+	 * Ends a transaction that Zotero did not complete, writing out the properties it
+	 * changed so that fields inserted before it was abandoned keep their codes
+	 */
+	void abandon() {
+		try {
+			properties.flush();
+		} catch(Exception e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				undoManager.leaveUndoContext();
+			} catch(Exception e) {}
+			app.documentComplete(ID);
+			Metrics.transactionComplete();
+		}
+	}
+	
+	/**
+	 * Locks the controllers and action-locks the model so that Writer does not update the
+	 * view or reformat the document until endBulkEdit(). A bulk edit lasts for a single
+	 * applyFieldOps or convertAll request, which ends it in a finally block, or until a
+	 * field is selected. The selection is restored when the bulk edit ends.
+	 */
+	void beginBulkEdit() {
+		if(inBulkEdit) return;
+		inBulkEdit = true;
+		
+		try {
+			XTextViewCursor viewCursor = getSelection();
+			savedSelection = viewCursor.getText().createTextCursorByRange(viewCursor);
+		} catch(Exception e) {
+			savedSelection = null;
+		}
+		
+		XModel model = (XModel) UnoRuntime.queryInterface(XModel.class, component);
+		model.lockControllers();
+		XActionLockable actionLockable = (XActionLockable) UnoRuntime.queryInterface(XActionLockable.class, component);
+		if(actionLockable != null) actionLockable.addActionLock();
+	}
+	
+	/**
+	 * Ends a bulk edit started with beginBulkEdit(), if any
+	 */
+	void endBulkEdit() {
+		if(!inBulkEdit) return;
+		inBulkEdit = false;
+		
+		XActionLockable actionLockable = (XActionLockable) UnoRuntime.queryInterface(XActionLockable.class, component);
+		if(actionLockable != null) actionLockable.removeActionLock();
+		if(savedSelection != null) {
+			try {
+				getSelection().gotoRange(savedSelection, false);
+			} catch(Exception e) {
+				// The selection was in text that no longer exists
+			}
+			savedSelection = null;
+		}
+		XModel model = (XModel) UnoRuntime.queryInterface(XModel.class, component);
+		model.unlockControllers();
 	}
 	
 	public int displayAlert(String text, int icon, int buttons) throws Exception {
@@ -350,7 +422,7 @@ public class Document {
 	}
 	
 	public ArrayList<ReferenceMark> getFields(String fieldType) throws Exception {
-		ArrayList<ReferenceMark> marks = new ArrayList<ReferenceMark>();
+		ArrayList<ReferenceMark> marks;
 		
 		// get all ReferenceMarks/Bookmarks
 		if(fieldType.equals("ReferenceMark")) {
@@ -359,52 +431,52 @@ public class Document {
 			
 			XReferenceMarksSupplier referenceMarksSupplier = (XReferenceMarksSupplier) 
 				UnoRuntime.queryInterface(XReferenceMarksSupplier.class, component);
-			XIndexAccess markIndexAccess = (XIndexAccess) UnoRuntime.queryInterface(XIndexAccess.class,
-					referenceMarksSupplier.getReferenceMarks());
-			int count = markIndexAccess.getCount();
-			for(int i = 0; i<count; i++) {
-				ReferenceMark mark = mMarkManager.getMark(markIndexAccess.getByIndex(i), fieldType);
-				if(mark != null) marks.add(mark);
-			}
-			
 			XTextSectionsSupplier textSectionSupplier = (XTextSectionsSupplier) 
 				UnoRuntime.queryInterface(XTextSectionsSupplier.class, component);
-			markIndexAccess = (XIndexAccess) UnoRuntime.queryInterface(XIndexAccess.class,
-					textSectionSupplier.getTextSections());
-			count = markIndexAccess.getCount();
-			for(int i = 0; i<count; i++) {
-				ReferenceMark mark = mMarkManager.getMark(markIndexAccess.getByIndex(i), fieldType);
-				if(mark != null) marks.add(mark);
-			}
+			XNameAccess[] containers = {referenceMarksSupplier.getReferenceMarks(),
+					textSectionSupplier.getTextSections()};
+			marks = mMarkManager.getMarks(containers, fieldType);
 		} else if(fieldType.equals("Bookmark")) {
 			// remove save event listener if necessary
 			Application.saveEventListener.detachFrom(component, runtimeUID);
 			
 			XBookmarksSupplier bookmarksSupplier = (XBookmarksSupplier) 
 				UnoRuntime.queryInterface(XBookmarksSupplier.class, component);
-			XNameAccess markNameAccess = (XNameAccess) UnoRuntime.queryInterface(XNameAccess.class,
-					bookmarksSupplier.getBookmarks());
-			String[] markNames = markNameAccess.getElementNames();
-			
-			for(int i = 0; i<markNames.length; i++) {
-				String name = markNames[i];
-				
-				for(String prefix : Document.PREFIXES) {
-					if(name.contains(prefix)) {
-						ReferenceMark mark = mMarkManager.getMark(markNameAccess.getByName(name), fieldType);
-						if(mark != null) marks.add(mark);
-						break;
-					}
-				}
-			}
+			XNameAccess[] containers = {bookmarksSupplier.getBookmarks()};
+			marks = mMarkManager.getMarks(containers, fieldType);
 		} else {
 			throw new Exception("Invalid field type "+fieldType);
 		}
+		removeOrphanedTextDigests(marks);
 
-		Collections.sort(marks);
+		long start = Metrics.start();
+		try {
+			new FieldOrder(textDocument, fieldType).sort(marks);
+		} catch(Exception e) {
+			// fall back to comparing ranges
+			e.printStackTrace();
+			Collections.sort(marks);
+		}
+		Metrics.recordTime(Metrics.GET_FIELDS_SORT, start);
 		return marks;
 	}
 	
+	/**
+	 * Removes the digests of text set on fields that are no longer in the document, e.g.
+	 * because the user deleted them. Digests of fields of the other type are removed too,
+	 * which only means that their text is set again the next time.
+	 */
+	private void removeOrphanedTextDigests(ArrayList<ReferenceMark> marks) throws Exception {
+		HashSet<String> names = properties.getPropertyNames(TEXT_DIGEST_PROPERTY);
+		if(names.isEmpty()) return;
+		for(ReferenceMark mark : marks) {
+			names.remove(mark.getTextDigestPropertyName());
+		}
+		for(String name : names) {
+			properties.setProperty(name, "");
+		}
+	}
+	
 	public ReferenceMark insertField(String fieldType, int noteType) throws Exception {
 		// duplicate selection cursor
 		XTextViewCursor selectionCursor = getSelection();
@@ -415,6 +487,8 @@ public class Document {
 	}
 	
 	public void convert(ReferenceMark mark, String fieldType, int noteType) throws Exception {
+		// The converted field keeps the name of the old one but not its formatting
+		mark.clearTextDigest();
 		XTextCursor range = mark.getReplacementCursor();
 		
 		boolean isBookmark = mark instanceof Bookmark;
@@ -431,6 +505,23 @@ public class Document {
 		}
 	}
 	
+	/**
+	 * Converts several marks in a single bulk edit
+	 * @param marks Marks to convert
+	 * @param fieldType Field type to convert to
+	 * @param noteTypes Note type for each mark
+	 */
+	public void convertAll(ArrayList<ReferenceMark> marks, String fieldType, ArrayList<Integer> noteTypes) throws Exception {
+		beginBulkEdit();
+		try {
+			for(int i=0; i<marks.size(); i++) {
+				convert(marks.get(i), fieldType, noteTypes.get(i));
+			}
+		} finally {
+			endBulkEdit();
+		}
+	}
+	
 	public void setBibliographyStyle(int firstLineIndent, int bodyIndent, int lineSpacing,
 			int entrySpacing, ArrayList<Number> arrayList, int tabStopCount) throws Exception { 
 		XStyleFamiliesSupplier styleFamilies = (XStyleFamiliesSupplier) UnoRuntime.queryInterface(
@@ -558,6 +649,20 @@ public class Document {
 		return sb.toString();
 	}
 	
+	/**
+	 * Gets a hex-encoded MD5 digest of a string
+	 */
+	static String getDigest(String string) {
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(string.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder(digest.length*2);
+			for(byte b : digest) sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch(Exception e) {
+			return Integer.toHexString(string.hashCode());
+		}
+	}
+	
 	static String getErrorString(Exception e) {
 		StringWriter sw = new StringWriter();
 		e.printStackTrace(new PrintWriter(sw));
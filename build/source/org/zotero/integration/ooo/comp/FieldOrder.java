@@ -0,0 +1,151 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import com.sun.star.beans.XPropertySet;
+import com.sun.star.container.XEnumeration;
+import com.sun.star.container.XEnumerationAccess;
+import com.sun.star.container.XNamed;
+import com.sun.star.lang.XServiceInfo;
+import com.sun.star.text.XText;
+import com.sun.star.text.XTextDocument;
+import com.sun.star.text.XTextTable;
+import com.sun.star.uno.UnoRuntime;
+
+/**
+ * Determines the document order of fields by walking the body text once, descending into
+ * tables and footnotes/endnotes where they occur. Each mark found gets an integer position,
+ * so sorting fields needs no further UNO calls.
+ */
+class FieldOrder {
+	HashMap<String, Integer> positions = new HashMap<String, Integer>();
+	private int nextPosition = 0;
+	private String fieldType;
+	private int unoCalls = 0;
+	
+	FieldOrder(XTextDocument textDocument, String aFieldType) throws Exception {
+		fieldType = aFieldType;
+		try {
+			walkText(textDocument.getText());
+		} finally {
+			Metrics.countUnoCalls(unoCalls+1);
+		}
+	}
+	
+	/**
+	 * Sorts marks into document order. Marks the walk could not place (e.g. those in
+	 * frames) are ordered using ReferenceMark.compareTo and come after all other marks.
+	 * @param marks
+	 */
+	void sort(ArrayList<ReferenceMark> marks) {
+		ArrayList<ReferenceMark> placed = new ArrayList<ReferenceMark>(marks.size());
+		ArrayList<ReferenceMark> unplaced = new ArrayList<ReferenceMark>();
+		for(ReferenceMark mark : marks) {
+			if(positions.containsKey(mark.rawCode)) {
+				placed.add(mark);
+			} else {
+				unplaced.add(mark);
+			}
+		}
+		
+		Collections.sort(placed, new Comparator<ReferenceMark>() {
+			public int compare(ReferenceMark a, ReferenceMark b) {
+				return Integer.compare(positions.get(a.rawCode), positions.get(b.rawCode));
+			}
+		});
+		Collections.sort(unplaced);
+		
+		marks.clear();
+		marks.addAll(placed);
+		marks.addAll(unplaced);
+	}
+	
+	private void walkText(XText text) throws Exception {
+		XEnumerationAccess xParaAccess = UnoRuntime.queryInterface(XEnumerationAccess.class, text);
+		XEnumeration xParaEnum = xParaAccess.createEnumeration();
+		unoCalls += 2;
+		while(xParaEnum.hasMoreElements()) {
+			unoCalls += 3;
+			Object elt = xParaEnum.nextElement();
+			XServiceInfo xInfo = UnoRuntime.queryInterface(XServiceInfo.class, elt);
+			if(xInfo.supportsService("com.sun.star.text.TextTable")) {
+				walkTable(UnoRuntime.queryInterface(XTextTable.class, elt));
+			} else {
+				walkParagraph(elt);
+			}
+		}
+	}
+	
+	private void walkTable(XTextTable table) throws Exception {
+		// Cell names are returned row by row
+		unoCalls++;
+		for(String cellName : table.getCellNames()) {
+			unoCalls++;
+			walkText(UnoRuntime.queryInterface(XText.class, table.getCellByName(cellName)));
+		}
+	}
+	
+	private void walkParagraph(Object paragraph) throws Exception {
+		if(fieldType.equals("ReferenceMark")) {
+			// The bibliography is a TextSection, which does not show up as a text portion
+			Object section = UnoRuntime.queryInterface(XPropertySet.class, paragraph).getPropertyValue("TextSection");
+			XNamed sectionNamed = UnoRuntime.queryInterface(XNamed.class, section);
+			unoCalls++;
+			if(sectionNamed != null) {
+				unoCalls++;
+				addPosition(sectionNamed.getName());
+			}
+		}
+		
+		XEnumerationAccess xPortionAccess = UnoRuntime.queryInterface(XEnumerationAccess.class, paragraph);
+		XEnumeration xPortionEnum = xPortionAccess.createEnumeration();
+		unoCalls += 2;
+		while(xPortionEnum.hasMoreElements()) {
+			unoCalls += 3;
+			XPropertySet portion = UnoRuntime.queryInterface(XPropertySet.class, xPortionEnum.nextElement());
+			String portionType = (String) portion.getPropertyValue("TextPortionType");
+			if(portionType.equals(fieldType)) {
+				unoCalls += 2;
+				addPosition(UnoRuntime.queryInterface(XNamed.class, portion.getPropertyValue(fieldType)).getName());
+			} else if(portionType.equals("Footnote")) {
+				// Footnotes and endnotes are ordered by their anchors
+				unoCalls++;
+				walkText(UnoRuntime.queryInterface(XText.class, portion.getPropertyValue("Footnote")));
+			}
+		}
+	}
+	
+	private void addPosition(String name) {
+		// Only the start of a mark counts
+		if(!positions.containsKey(name)) {
+			positions.put(name, nextPosition++);
+		}
+	}
+}
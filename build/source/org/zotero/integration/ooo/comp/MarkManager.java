@@ -26,24 +26,93 @@ package org.zotero.integration.ooo.comp;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.Iterator;
 
+import com.sun.star.container.XNameAccess;
 import com.sun.star.container.XNamed;
+import com.sun.star.lang.EventObject;
+import com.sun.star.lang.XComponent;
 import com.sun.star.uno.UnoRuntime;
+import com.sun.star.util.XModifiable;
+import com.sun.star.util.XModifyBroadcaster;
+import com.sun.star.util.XModifyListener;
 
-public class MarkManager {
+/**
+ * Index of the Zotero fields in a document. A MarkManager is kept by Application for
+ * as long as its document is open, so field IDs stay stable and ReferenceMark wrappers
+ * are reused between transactions.
+ */
+public class MarkManager implements XModifyListener {
 	private HashMap<String, ReferenceMark> mMarksByName;
-	private ArrayList<ReferenceMark> mMarksByID;
+	private HashMap<Integer, ReferenceMark> mMarksByID;
 	private IdentityHashMap<ReferenceMark, Integer> mIDsByMark;
+	private int mNextID = 0;
 	private Document mDoc;
+	private String mRuntimeUID;
+	private XComponent mComponent;
+	// Whether the document may have been changed since the last call to getMarks()
+	private volatile boolean mModified = true;
 	
-	MarkManager(Document aDoc) {
-		mDoc = aDoc;
+	/**
+	 * @param aRuntimeUID RuntimeUID of the document
+	 * @param aComponent The document; setDocument() must be called before getting marks
+	 */
+	MarkManager(String aRuntimeUID, XComponent aComponent) {
+		mRuntimeUID = aRuntimeUID;
+		mComponent = aComponent;
 		mMarksByName = new HashMap<String, ReferenceMark>();
-		mMarksByID = new ArrayList<ReferenceMark>();
+		mMarksByID = new HashMap<Integer, ReferenceMark>();
 		mIDsByMark = new IdentityHashMap<ReferenceMark, Integer>();
 	}
 	
+	/**
+	 * Starts listening for changes to and disposal of the document
+	 */
+	void attach() {
+		XModifyBroadcaster modifyBroadcaster = (XModifyBroadcaster) UnoRuntime.queryInterface(XModifyBroadcaster.class, mComponent);
+		if(modifyBroadcaster != null) modifyBroadcaster.addModifyListener(this);
+	}
+	
+	/**
+	 * Stops listening to the document
+	 */
+	void detach() {
+		try {
+			XModifyBroadcaster modifyBroadcaster = (XModifyBroadcaster) UnoRuntime.queryInterface(XModifyBroadcaster.class, mComponent);
+			if(modifyBroadcaster != null) modifyBroadcaster.removeModifyListener(this);
+		} catch(Exception e) {}
+	}
+	
+	/**
+	 * Points the index and all of its marks at the Document of a new transaction. Marks
+	 * edited in an earlier transaction get their ranges back from their anchors, and
+	 * those that were deleted are dropped.
+	 * @param aDoc
+	 */
+	void setDocument(Document aDoc) {
+		mDoc = aDoc;
+		Iterator<ReferenceMark> iterator = mMarksByID.values().iterator();
+		while(iterator.hasNext()) {
+			ReferenceMark mark = iterator.next();
+			mark.doc = aDoc;
+			if(!mark.resetRange()) {
+				iterator.remove();
+				mIDsByMark.remove(mark);
+				if(mMarksByName.get(mark.rawCode) == mark) mMarksByName.remove(mark.rawCode);
+			}
+		}
+	}
+
+	public void modified(EventObject event) {
+		mModified = true;
+	}
+
+	public void disposing(EventObject event) {
+		Application.documentDisposed(mRuntimeUID);
+	}
+	
 	/**
 	 * Updates internal hashes to accommodate renaming of a mark
 	 * @param aOldName The old name of the mark
@@ -73,6 +142,49 @@ public class MarkManager {
 		return mMarksByID.get(ID);
 	}
 	
+	/**
+	 * Gets all Zotero marks in the given containers, reusing marks already in the index.
+	 * Marks of the given type that are no longer in the document are dropped from the index.
+	 * @param aContainers Name containers holding ReferenceMarks, TextSections or Bookmarks
+	 * @param aFieldType "ReferenceMark" or "Bookmark"
+	 * @return Marks in no particular order
+	 */
+	ArrayList<ReferenceMark> getMarks(XNameAccess[] aContainers, String aFieldType) throws Exception {
+		ArrayList<ReferenceMark> marks = new ArrayList<ReferenceMark>();
+		HashSet<String> seenNames = new HashSet<String>();
+		// The modify listener is only called when the document goes from unmodified to
+		// modified, so it can only vouch for marks while the document is unmodified
+		boolean checkMarks = mModified || isDocumentModified();
+		mModified = false;
+		
+		for(XNameAccess container : aContainers) {
+			Metrics.countUnoCalls(1);
+			for(String name : container.getElementNames()) {
+				if(!hasPrefix(name)) continue;
+				seenNames.add(name);
+				
+				ReferenceMark mark = mMarksByName.get(name);
+				if(mark == null || checkMarks || !isOfType(mark, aFieldType)) {
+					Metrics.countUnoCalls(2);
+					mark = getMark(container.getByName(name), aFieldType);
+				}
+				if(mark != null) marks.add(mark);
+			}
+		}
+		
+		// Forget marks that have been removed from the document
+		Iterator<ReferenceMark> iterator = mMarksByName.values().iterator();
+		while(iterator.hasNext()) {
+			ReferenceMark mark = iterator.next();
+			if(isOfType(mark, aFieldType) && !seenNames.contains(mark.rawCode)) {
+				iterator.remove();
+				mMarksByID.remove(mIDsByMark.remove(mark));
+			}
+		}
+		
+		return marks;
+	}
+	
 	/**
 	 * Gets a ReferenceMark given an UNO object corresponding to it
 	 * @param aMark UNO object corresponding to ReferenceMark (or Bookmark)
@@ -87,31 +199,56 @@ public class MarkManager {
     	XNamed named = (XNamed) UnoRuntime.queryInterface(XNamed.class, aMark);
 		String name = named.getName();
 		
-		// Return hashed mark if it exists
-		ReferenceMark retMark = mMarksByName.get(name);
-		if(retMark != null) {
-			return retMark;
+		// Return hashed mark if it still refers to the same UNO object
+		ReferenceMark oldMark = mMarksByName.get(name);
+		if(oldMark != null && isOfType(oldMark, aFieldType) && UnoRuntime.areSame(oldMark.named, named)) {
+			return oldMark;
+		}
+		
+		// A mark that was cut and pasted or converted keeps its ID
+		Integer ID = null;
+		if(oldMark != null) {
+			mMarksByName.remove(name);
+			ID = mIDsByMark.remove(oldMark);
+			mMarksByID.remove(ID);
 		}
 		
 		// Create new mark
-		for(String prefix : Document.PREFIXES) {
-			if(name.contains(prefix)) {
-				try {
-					if(aFieldType.equals("ReferenceMark")) {
-						retMark = new ReferenceMark(mDoc, named, name);
-					} else if(aFieldType.equals("Bookmark")) {
-						retMark = new Bookmark(mDoc, named, name);
-					} else {
-						return null;
-					}
-					mMarksByName.put(name, retMark);
-					mIDsByMark.put(retMark, mMarksByID.size());
-					mMarksByID.add(retMark);
-				} catch (IllegalArgumentException e) {}
-				return retMark;
-			}
+		if(hasPrefix(name)) {
+			ReferenceMark retMark = null;
+			try {
+				if(aFieldType.equals("ReferenceMark")) {
+					retMark = new ReferenceMark(mDoc, named, name);
+				} else if(aFieldType.equals("Bookmark")) {
+					retMark = new Bookmark(mDoc, named, name);
+				} else {
+					return null;
+				}
+				
+				if(ID == null) ID = mNextID++;
+				mMarksByName.put(name, retMark);
+				mIDsByMark.put(retMark, ID);
+				mMarksByID.put(ID, retMark);
+			} catch (IllegalArgumentException e) {}
+			return retMark;
 		}
 		
 		return null;
     }
+	
+	private boolean isDocumentModified() {
+		XModifiable modifiable = (XModifiable) UnoRuntime.queryInterface(XModifiable.class, mComponent);
+		return modifiable == null || modifiable.isModified();
+	}
+	
+	private static boolean isOfType(ReferenceMark aMark, String aFieldType) {
+		return (aMark instanceof Bookmark) == aFieldType.equals("Bookmark");
+	}
+	
+	private static boolean hasPrefix(String aName) {
+		for(String prefix : Document.PREFIXES) {
+			if(aName.contains(prefix)) return true;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,173 @@
+/*
+	***** BEGIN LICENSE BLOCK *****
+	
+	Copyright (c) 2017  Zotero
+						Center for History and New Media
+						George Mason University, Fairfax, Virginia, USA
+						http://zotero.org
+	
+	Zotero is free software: you can redistribute it and/or modify
+	it under the terms of the GNU Affero General Public License as published by
+	the Free Software Foundation, either version 3 of the License, or
+	(at your option) any later version.
+	
+	Zotero is distributed in the hope that it will be useful,
+	but WITHOUT ANY WARRANTY; without even the implied warranty of
+	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+	GNU Affero General Public License for more details.
+	
+	You should have received a copy of the GNU Affero General Public License
+	along with Zotero.  If not, see <http://www.gnu.org/licenses/>.
+	
+	***** END LICENSE BLOCK *****
+*/
+
+package org.zotero.integration.ooo.comp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Always-on counters and histograms for the integration's hot paths. The report is
+ * available through the Application_getDiagnostics command.
+ */
+class Metrics {
+	static final String COMMAND_PREFIX = "command ";
+	static final String FRAME_BYTES_IN = "frame bytes in";
+	static final String FRAME_BYTES_OUT = "frame bytes out";
+	// Only calls made where fields are indexed and ordered and where document properties
+	// are read and written are counted, so the figure is a lower bound
+	static final String UNO_CALLS_PER_TRANSACTION = "UNO calls per transaction (lower bound, instrumented sites only)";
+	static final String GET_FIELDS_SORT = "getFields sort";
+	static final String INSERT_RTF = "insertRTF";
+	static final String PROPERTIES_READ = "Properties read";
+	static final String PROPERTIES_WRITE = "Properties write";
+	// The report is written here, in the temp directory, by Application_getDiagnostics
+	static final String DIAGNOSTICS_FILE_NAME = "zotero-libreoffice-diagnostics.txt";
+	
+	private static ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static long transactionUnoCalls = 0;
+	
+	/**
+	 * Histogram with power-of-two buckets
+	 */
+	static class Histogram {
+		private String unit;
+		private long[] buckets = new long[65];
+		private long count = 0;
+		private long total = 0;
+		private long max = 0;
+		
+		Histogram(String aUnit) {
+			unit = aUnit;
+		}
+		
+		synchronized void record(long value) {
+			if(value < 0) value = 0;
+			buckets[64-Long.numberOfLeadingZeros(value)]++;
+			count++;
+			total += value;
+			if(value > max) max = value;
+		}
+		
+		/**
+		 * Gets an upper bound on the given percentile
+		 */
+		synchronized long getPercentile(double percentile) {
+			long rank = (long) Math.ceil(count*percentile/100);
+			long seen = 0;
+			for(int i=0; i<buckets.length; i++) {
+				seen += buckets[i];
+				if(seen >= rank && seen > 0) return Math.min(i == 0 ? 0 : (1L << i)-1, max);
+			}
+			return max;
+		}
+		
+		synchronized String summarize() {
+			return String.format("count %d, mean %.1f %s, p50 <= %d %s, p99 <= %d %s, max %d %s",
+					count, count == 0 ? 0.0 : (double) total/count, unit,
+					getPercentile(50), unit, getPercentile(99), unit, max, unit);
+		}
+	}
+	
+	/**
+	 * Gets a start time for recordTime()
+	 */
+	static long start() {
+		return System.nanoTime();
+	}
+	
+	/**
+	 * Records the time since startTime in microseconds
+	 */
+	static void recordTime(String name, long startTime) {
+		getHistogram(name, "us").record((System.nanoTime()-startTime)/1000);
+	}
+	
+	static void recordBytes(String name, long bytes) {
+		getHistogram(name, "bytes").record(bytes);
+	}
+	
+	/**
+	 * Counts remote calls into LibreOffice made for the current transaction. Calls are
+	 * counted where fields are indexed, ordered, read and written, not everywhere.
+	 */
+	static synchronized void countUnoCalls(int calls) {
+		transactionUnoCalls += calls;
+	}
+	
+	/**
+	 * Records the UNO calls counted since the last transaction completed
+	 */
+	static synchronized void transactionComplete() {
+		getHistogram(UNO_CALLS_PER_TRANSACTION, "calls").record(transactionUnoCalls);
+		transactionUnoCalls = 0;
+	}
+	
+	static String getReport() {
+		StringBuilder sb = new StringBuilder();
+		for(Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			sb.append(entry.getKey()).append(": ").append(entry.getValue().summarize()).append("\n");
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the report to DIAGNOSTICS_FILE_NAME in the temp directory. The report is
+	 * written to a new file that then replaces the old one, so a link left at that name
+	 * is replaced rather than followed.
+	 */
+	static void dump(String report) throws IOException {
+		File tempDir = new File(System.getProperty("java.io.tmpdir"));
+		File file = File.createTempFile("zotero-libreoffice-", ".txt", tempDir);
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				writer.write(report);
+			} finally {
+				writer.close();
+			}
+			Files.move(file.toPath(), new File(tempDir, DIAGNOSTICS_FILE_NAME).toPath(),
+					StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			file.delete();
+		}
+	}
+	
+	private static Histogram getHistogram(String name, String unit) {
+		Histogram histogram = histograms.get(name);
+		if(histogram == null) {
+			histograms.putIfAbsent(name, new Histogram(unit));
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+}
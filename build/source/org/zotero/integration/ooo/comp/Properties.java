@@ -24,9 +24,18 @@
 
 package org.zotero.integration.ooo.comp;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
 import com.sun.star.beans.NotRemoveableException;
+import com.sun.star.beans.Property;
 import com.sun.star.beans.PropertyExistException;
+import com.sun.star.beans.PropertyState;
+import com.sun.star.beans.PropertyValue;
 import com.sun.star.beans.UnknownPropertyException;
+import com.sun.star.beans.XPropertyAccess;
 import com.sun.star.beans.XPropertyContainer;
 import com.sun.star.beans.XPropertySet;
 import com.sun.star.document.XDocumentPropertiesSupplier;
@@ -34,42 +43,53 @@ import com.sun.star.lang.XComponent;
 import com.sun.star.uno.Any;
 import com.sun.star.uno.UnoRuntime;
 
+/**
+ * User-defined document properties, split into chunks of MAX_PROPERTY_LENGTH characters
+ * named propertyName_1, propertyName_2, etc. All properties are read in one call on first
+ * access. Changes are kept in memory until flush() is called.
+ */
 public class Properties {
 	private static final int MAX_PROPERTY_LENGTH = 255;
 	private XPropertySet propertySet;
 	private XPropertyContainer propertyContainer;
+	private XPropertyAccess propertyAccess;
+	// Values of all chunks, by chunk name
+	private HashMap<String, Object> values;
+	// Names of the chunks that exist in the document
+	private HashSet<String> storedNames;
+	// Names of chunks that have been set or removed since the last flush
+	private LinkedHashSet<String> dirtyNames = new LinkedHashSet<String>();
 	
 	public Properties(XComponent component) {
 		XDocumentPropertiesSupplier docInfoSupplier = (XDocumentPropertiesSupplier) UnoRuntime.queryInterface(XDocumentPropertiesSupplier.class, component);
 		XPropertyContainer docProperties = docInfoSupplier.getDocumentProperties().getUserDefinedProperties();
 		propertySet = (XPropertySet) UnoRuntime.queryInterface(XPropertySet.class, docProperties);
 		propertyContainer = (XPropertyContainer) UnoRuntime.queryInterface(XPropertyContainer.class, docProperties);
+		propertyAccess = (XPropertyAccess) UnoRuntime.queryInterface(XPropertyAccess.class, docProperties);
 	}
 	
 	public String getProperty(String propertyName) throws Exception {
+		load();
 		int i = 0;
-		String propertyValue = "";
+		StringBuilder propertyValue = new StringBuilder();
 		Object val;
 		
 		while(true) {
 			i++;
-			try {
-				val = propertySet.getPropertyValue(propertyName+"_"+i);
-			} catch(UnknownPropertyException e) {
-				break;
-			}
-			
-			if(val.getClass() == Any.class && val.equals(Any.VOID)) {
+			val = values.get(propertyName+"_"+i);
+			if(val == null || (val.getClass() == Any.class && val.equals(Any.VOID))) {
 				break;
 			} else {
-				propertyValue += val;
+				propertyValue.append(val);
 			}
 		}
 		
-		return propertyValue;
+		// callers compare against "" by reference
+		return propertyValue.length() == 0 ? "" : propertyValue.toString();
 	}
 	
 	public void setProperty(String propertyName, String propertyValue) throws Exception {
+		load();
 		int i = 0;
 		int propertyLength = propertyValue.length();
 		
@@ -77,24 +97,101 @@ public class Properties {
 			i = i + 1;
 			String docPropertyName = propertyName+"_"+i;
 			String docPropertyValue = propertyValue.substring((i-1)*MAX_PROPERTY_LENGTH, Math.min(i*MAX_PROPERTY_LENGTH, propertyLength));
-			try {
-				propertyContainer.addProperty(docPropertyName, (short) 0, "");
-			} catch(PropertyExistException e) {}
-			propertySet.setPropertyValue(docPropertyName, docPropertyValue);
+			if(!docPropertyValue.equals(values.put(docPropertyName, docPropertyValue))) {
+				dirtyNames.add(docPropertyName);
+			}
 		}
 		
 		while(true) {
 			i = i + 1;
-			try {
-				String docPropertyName = propertyName+"_"+i;
+			String docPropertyName = propertyName+"_"+i;
+			if(!values.containsKey(docPropertyName)) break;
+			values.remove(docPropertyName);
+			dirtyNames.add(docPropertyName);
+		}
+	}
+	
+	/**
+	 * Gets the names of the properties that start with the given prefix
+	 */
+	public HashSet<String> getPropertyNames(String prefix) throws Exception {
+		load();
+		HashSet<String> names = new HashSet<String>();
+		for(String docPropertyName : values.keySet()) {
+			if(docPropertyName.startsWith(prefix)) {
+				names.add(docPropertyName.substring(0, docPropertyName.lastIndexOf('_')));
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Writes properties changed since the last flush to the document
+	 */
+	public void flush() throws Exception {
+		if(dirtyNames.isEmpty()) return;
+		long start = Metrics.start();
+		int calls = 1;
+		
+		ArrayList<PropertyValue> changedValues = new ArrayList<PropertyValue>(dirtyNames.size());
+		for(String docPropertyName : dirtyNames) {
+			if(values.containsKey(docPropertyName)) {
+				if(!storedNames.contains(docPropertyName)) {
+					try {
+						calls++;
+						propertyContainer.addProperty(docPropertyName, (short) 0, "");
+					} catch(PropertyExistException e) {}
+					storedNames.add(docPropertyName);
+				}
+				changedValues.add(new PropertyValue(docPropertyName, 0, values.get(docPropertyName), PropertyState.DIRECT_VALUE));
+			} else if(storedNames.contains(docPropertyName)) {
 				try {
+					calls++;
 					propertyContainer.removeProperty(docPropertyName);
+					storedNames.remove(docPropertyName);
 				} catch(NotRemoveableException e) {
-					propertySet.setPropertyValue(docPropertyName, "");
+					changedValues.add(new PropertyValue(docPropertyName, 0, "", PropertyState.DIRECT_VALUE));
+				} catch(UnknownPropertyException e) {
+					storedNames.remove(docPropertyName);
 				}
-			} catch(UnknownPropertyException e) {
-				break;
 			}
 		}
+		
+		if(propertyAccess != null) {
+			propertyAccess.setPropertyValues(changedValues.toArray(new PropertyValue[changedValues.size()]));
+		} else {
+			for(PropertyValue value : changedValues) {
+				propertySet.setPropertyValue(value.Name, value.Value);
+			}
+			calls += changedValues.size()-1;
+		}
+		dirtyNames.clear();
+		Metrics.countUnoCalls(calls);
+		Metrics.recordTime(Metrics.PROPERTIES_WRITE, start);
+	}
+	
+	/**
+	 * Reads all user-defined properties from the document, if not yet read
+	 */
+	private void load() throws Exception {
+		if(values != null) return;
+		long start = Metrics.start();
+		
+		HashMap<String, Object> newValues = new HashMap<String, Object>();
+		if(propertyAccess != null) {
+			for(PropertyValue value : propertyAccess.getPropertyValues()) {
+				newValues.put(value.Name, value.Value);
+			}
+			Metrics.countUnoCalls(1);
+		} else {
+			Property[] properties = propertySet.getPropertySetInfo().getProperties();
+			for(Property property : properties) {
+				newValues.put(property.Name, propertySet.getPropertyValue(property.Name));
+			}
+			Metrics.countUnoCalls(2+properties.length);
+		}
+		values = newValues;
+		Metrics.recordTime(Metrics.PROPERTIES_READ, start);
+		storedNames = new HashSet<String>(values.keySet());
 	}
 }
@@ -54,6 +54,7 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 	// NOTE: This list must be sorted. See the API docs for XMultiPropertySet for more details.
 	private static final String[] PROPERTIES_CHANGE_TO_DEFAULT =
 		{"CharCaseMap", "CharEscapement", "CharEscapementHeight", "CharPosture", "CharUnderline", "CharWeight"};
+	private static final Pattern CELL_NAME_PATTERN = Pattern.compile("([^0-9]+)([0-9]+)");
 	
 	protected Document doc;
 	protected XTextRangeCompare textRangeCompare;
@@ -65,7 +66,11 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 	XTextContent table;
 	protected boolean isTextSection;
 	protected boolean isDisposable;
+	// Whether range is a cursor left by an edit rather than the anchor of the mark
+	protected boolean rangeIsCursor;
 	String rawCode;
+	private String textDigestRawCode;
+	private String textDigestPropertyName;
 	
 	public ReferenceMark(Document aDoc, XNamed aMark, String aCode) throws IllegalArgumentException {
 		doc = aDoc;
@@ -101,15 +106,18 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 		textRangeCompare = (XTextRangeCompare) UnoRuntime.queryInterface(XTextRangeCompare.class, text);
 		
 		rawCode = aCode;
+		Metrics.countUnoCalls(table == null ? 5 : 6);
 	}
 	
 	public void delete() throws Exception {
+		clearTextDigest();
 		if(isWholeRange()) {
 			((XComponent) UnoRuntime.queryInterface(XComponent.class, text)).dispose();
 		} else {
 			XTextCursor dupRange = text.createTextCursorByRange(range);
 			text.removeTextContent(textContent);
 			range = dupRange;
+			rangeIsCursor = true;
 			
 			// dispose of a Bookmark or TextSection
 			if(isDisposable) {
@@ -119,6 +127,7 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 	}
 	
 	public void removeCode() throws Exception {
+		clearTextDigest();
 		if(isDisposable) {
 			((XComponent) UnoRuntime.queryInterface(XComponent.class, textContent)).dispose();
 		} else {
@@ -128,6 +137,7 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 				XTextCursor dupRange = text.createTextCursorByRange(range);
 				text.removeTextContent(textContent);
 				range = dupRange;
+				rangeIsCursor = true;
 			} else {
 				// TODO: won't work with formatted text
 				range.setString(oldContents);
@@ -136,6 +146,8 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 	}
 	
 	public void select() throws Exception {
+		// The user needs to see the selection
+		doc.endBulkEdit();
 		XTextCursor cursor = doc.getSelection();
 		cursor.gotoRange(range, false);
 		if(isTextSection) {
@@ -148,6 +160,15 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 	}
 	
 	public void setText(String textString, boolean isRich) throws Exception {
+		// Skip re-inserting the text if it is what we last inserted and the user has not
+		// edited the field since. Only the plain text of the field is digested, so edits
+		// that change nothing but formatting are not detected and are kept.
+		String inputDigest = Document.getDigest((isRich ? "RTF:" : "TXT:")+textString);
+		if(doc.properties.getProperty(getTextDigestPropertyName())
+				.equals(inputDigest+" "+Document.getDigest(range.getString()))) {
+			return;
+		}
+		
 		boolean isBibliography = getCode().startsWith("BIBL");
 		XTextCursor viewCursor = doc.getSelection();
 		
@@ -170,6 +191,7 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 			text.removeTextContent(textContent);
 		}
 		range = cursor;
+		rangeIsCursor = true;
 		
 		if(!isBibliography) {
 			// move citation to its own paragraph so its formatting isn't altered automatically
@@ -284,9 +306,14 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 			
 			getOutOfField();
 		}
+		
+		doc.properties.setProperty(getTextDigestPropertyName(),
+				inputDigest+" "+Document.getDigest(textContent.getAnchor().getString()));
 	}
 
 	public void setCode(String code) throws Exception {
+		// Renaming a ReferenceMark resets its formatting
+		clearTextDigest();
 		String oldRawCode = rawCode;
 		rawCode = Document.PREFIXES[0] + code + " RND" + Document.getRandomString(Document.REFMARK_ADD_CHARS);
 		doc.mMarkManager.renameMark(oldRawCode, rawCode);
@@ -411,9 +438,8 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 				} else {
 					// different cells in the same table
 					// split apart names with regular expressions
-					Pattern p = Pattern.compile("([^0-9]+)([0-9]+)");
-					Matcher m1 = p.matcher(cell1Name);
-					Matcher m2 = p.matcher(cell2Name);
+					Matcher m1 = CELL_NAME_PATTERN.matcher(cell1Name);
+					Matcher m2 = CELL_NAME_PATTERN.matcher(cell2Name);
 					if(!m1.matches() || !m2.matches()) {
 						return cell1Name.compareTo(cell2Name);
 					}
@@ -460,6 +486,7 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 				cursor.goLeft((short) 1, false);
 				cursor.goLeft((short) 1, true);
 				range = cursor;
+				rangeIsCursor = true;
 			}
 			
 			named = (XNamed) UnoRuntime.queryInterface(XNamed.class,
@@ -473,6 +500,26 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 		}
 	}
 	
+	/**
+	 * Points range back at the anchor of the mark after an earlier transaction left it on
+	 * a cursor
+	 * @return false if the mark is no longer in the document
+	 */
+	boolean resetRange() {
+		if(!rangeIsCursor) return true;
+		try {
+			XTextRange anchor = textContent.getAnchor();
+			if(anchor == null) return false;
+			range = anchor;
+			text = range.getText();
+			textRangeCompare = (XTextRangeCompare) UnoRuntime.queryInterface(XTextRangeCompare.class, text);
+			rangeIsCursor = false;
+			return true;
+		} catch(RuntimeException e) {
+			return false;
+		}
+	}
+	
 	protected void reattachMark() throws Exception {
 		if(isTextSection) return;
 	
@@ -483,6 +530,22 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 		textContent.attach(range);
 	}
 	
+	/**
+	 * Gets the name of the document property holding digests of the text last set on
+	 * this mark and of the resulting field contents
+	 */
+	protected String getTextDigestPropertyName() {
+		if(textDigestRawCode != rawCode) {
+			textDigestPropertyName = Document.TEXT_DIGEST_PROPERTY+Document.getDigest(rawCode);
+			textDigestRawCode = rawCode;
+		}
+		return textDigestPropertyName;
+	}
+	
+	protected void clearTextDigest() throws Exception {
+		doc.properties.setProperty(getTextDigestPropertyName(), "");
+	}
+	
 	protected void moveCursorRight(XTextCursor cursor, int length) {
 		short step;
 		for(int i=length; i>0; i-=step) {
@@ -528,7 +591,10 @@ public class ReferenceMark implements Comparable<ReferenceMark> {
 			return;
 		}
 		
+		long start = Metrics.start();
 		((XDocumentInsertable) UnoRuntime.queryInterface(XDocumentInsertable.class, cursor)).
 			insertDocumentFromURL("private:stream", new PropertyValue[] {filterName, inputStream});
+		Metrics.recordTime(Metrics.INSERT_RTF, start);
+		Metrics.countUnoCalls(1);
 	}
 }
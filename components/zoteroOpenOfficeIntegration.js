@@ -393,7 +393,7 @@ Application.prototype = {
 	"getActiveDocument":function() {
 		var retVal = Comm.sendCommand("Application_getActiveDocument", [API_VERSION]);
 		if(typeof retVal !== "object" || retVal[0] !== API_VERSION) Comm.incompatibleVersion();
-		return new Document(retVal[1]);
+		return new Document(retVal[1], retVal[2]);
 	},
 	"primaryFieldType":"ReferenceMark",
 	"secondaryFieldType":"Bookmark"
@@ -402,9 +402,18 @@ Application.prototype = {
 /**
  * See integrationTests.js
  */
-var Document = function(documentID) {
+var Document = function(documentID, runtimeUID) {
 	this._documentID = documentID;
+	this._runtimeUID = runtimeUID;
 };
+
+/**
+ * Field codes received from LibreOffice, as {fieldIndex: [codeHash, code]} by document
+ * RuntimeUID, so that Document_getFieldsDelta only needs to send codes that changed.
+ * Only the most recently used documents are kept, as LibreOffice does for its field index.
+ */
+const MAX_CACHED_DOCUMENTS = 8;
+var fieldCodeCache = new Map();
 Document.prototype = {};
 for (let method of ["displayAlert", "activate", "canInsertField", "getDocumentData",
 	"setDocumentData", "setBibliographyStyle", "complete"]) {
@@ -425,26 +434,56 @@ Document.prototype.insertField = function(fieldType, noteType) {
 	return new Field(this._documentID, retVal[0], retVal[1], retVal[2]);
 };
 Document.prototype.getFields = function(fieldType) {
-	var retVal = Comm.sendCommand("Document_getFields", [this._documentID, fieldType]);
-	return new FieldEnumerator(this._documentID, retVal[0], retVal[1], retVal[2]);
+	var retVal = Comm.sendCommand("Document_getFieldsDelta", this._getFieldsDeltaArgs(fieldType));
+	return this._getFieldEnumeratorForDelta(retVal);
 };
 Document.prototype.getFieldsAsync = function(fieldType, observer) {
-	var documentID = this._documentID;
-	Comm.sendCommandAsync("Document_getFields", [this._documentID, fieldType],
+	var me = this;
+	Comm.sendCommandAsync("Document_getFieldsDelta", this._getFieldsDeltaArgs(fieldType),
 		function(retVal) {
-			observer.observe(new FieldEnumerator(documentID, retVal[0], retVal[1], retVal[2]), "fields-available", null);
+			observer.observe(me._getFieldEnumeratorForDelta(retVal), "fields-available", null);
 		},
 		function(err) {
 			observer.observe(err, "fields-error", null);
 		}
 	);
 };
+Document.prototype._getFieldsDeltaArgs = function(fieldType) {
+	var cache = fieldCodeCache.get(this._runtimeUID) || {}, fieldIndices = [], codeHashes = [];
+	for (let fieldIndex in cache) {
+		fieldIndices.push(parseInt(fieldIndex));
+		codeHashes.push(cache[fieldIndex][0]);
+	}
+	return [this._documentID, fieldType, fieldIndices, codeHashes];
+};
+Document.prototype._getFieldEnumeratorForDelta = function(retVal) {
+	var [fieldIndices, fieldCodes, noteIndices, codeHashes] = retVal;
+	var oldCache = fieldCodeCache.get(this._runtimeUID) || {}, cache = {};
+	for (let i = 0; i < fieldIndices.length; i++) {
+		if (fieldCodes[i] === null) fieldCodes[i] = oldCache[fieldIndices[i]][1];
+		cache[fieldIndices[i]] = [codeHashes[i], fieldCodes[i]];
+	}
+	fieldCodeCache.delete(this._runtimeUID);
+	fieldCodeCache.set(this._runtimeUID, cache);
+	if (fieldCodeCache.size > MAX_CACHED_DOCUMENTS) {
+		fieldCodeCache.delete(fieldCodeCache.keys().next().value);
+	}
+	return new FieldEnumerator(this._documentID, fieldIndices, fieldCodes, noteIndices);
+};
+/**
+ * Applies a list of [command, fieldIndex, args...] field operations in one round trip.
+ * Returns [results, errors]; errors[i] is null if operation i succeeded.
+ */
+Document.prototype.applyFieldOps = function(ops) {
+	return Comm.sendCommand("Document_applyFieldOps", [this._documentID, ops]);
+};
 Document.prototype.convert = function(enumerator, fieldType, noteTypes) {
-	var i = 0;
+	var fieldIndices = [];
 	while(enumerator.hasMoreElements()) {
-		Comm.sendCommand("Field_convert", [this._documentID, enumerator.getNext()._index, fieldType, noteTypes[i]]);
-		i++;
+		fieldIndices.push(enumerator.getNext()._index);
 	}
+	Comm.sendCommand("Document_convertAll", [this._documentID, fieldIndices, fieldType,
+		Array.prototype.slice.call(noteTypes, 0, fieldIndices.length)]);
 };
 
 /**